@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Concurrency limit for calls to a backend, that adapts to how the backend
+ * copes
+ * <p>
+ * The limit is adjusted by AIMD: when a call is slower than the latency
+ * target, or fails, the limit is cut by a fraction. When calls are fast and
+ * the limit is in use, it grows by one for each limit's worth of calls.
+ * That keeps the number of calls in flight near the point where the backend
+ * starts slowing down.
+ * <p>
+ * Calls beyond the limit wait in a bounded queue for a limited time. Calls
+ * that find the queue full, or time out in it, fail with a
+ * {@link RejectedExecutionException} without reaching the backend.
+ */
+public class AdaptiveLimiter {
+
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTarget;
+    private final int maxQueue;
+    private final long queueTimeout;
+    private final Runnable onShed;
+    private final LongSupplier clock;
+    private final Deque<CompletableFuture<Void>> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param initialLimit  limit to start from
+     * @param minLimit      lowest limit
+     * @param maxLimit      highest limit
+     * @param latencyTarget calls slower than this reduce the limit
+     * @param maxQueue      number of calls that can wait
+     * @param queueTimeout  how long a call can wait
+     * @param onShed        called when a call is rejected
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, Duration latencyTarget,
+                           int maxQueue, Duration queueTimeout, Runnable onShed) {
+        this(initialLimit, minLimit, maxLimit, latencyTarget, maxQueue, queueTimeout, onShed, System::nanoTime);
+    }
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, Duration latencyTarget,
+                    int maxQueue, Duration queueTimeout, Runnable onShed, LongSupplier clock) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTarget = latencyTarget.toNanos();
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout.toMillis();
+        this.onShed = onShed;
+        this.clock = clock;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Make a call when the limit allows it
+     *
+     * @param call       starts the call
+     * @param overloaded tells if a result means the backend is overloaded
+     * @param <T>        result type
+     * @return stage with the result of the call
+     */
+    public <T> CompletionStage<T> submit(Supplier<CompletionStage<T>> call, Predicate<T> overloaded) {
+        CompletableFuture<Void> permit = null;
+        boolean shed = false;
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+            } else if (queue.size() >= maxQueue) {
+                shed = true;
+            } else {
+                permit = new CompletableFuture<>();
+                queue.add(permit);
+            }
+        }
+        if (shed) {
+            onShed.run();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Concurrency limit reached"));
+        }
+        if (permit == null) {
+            return run(call, overloaded);
+        }
+        CompletableFuture<Void> waiting = permit;
+        return permit.orTimeout(queueTimeout, TimeUnit.MILLISECONDS)
+                .handle((ignored, ex) -> {
+                    if (ex != null) {
+                        synchronized (this) {
+                            queue.remove(waiting);
+                        }
+                        onShed.run();
+                        return CompletableFuture.<T>failedFuture(new RejectedExecutionException("Timed out waiting for concurrency limit"));
+                    }
+                    return run(call, overloaded);
+                })
+                .thenCompose(stage -> stage);
+    }
+
+    private <T> CompletionStage<T> run(Supplier<CompletionStage<T>> call, Predicate<T> overloaded) {
+        long started = clock.getAsLong();
+        CompletionStage<T> stage;
+        try {
+            stage = call.get();
+        } catch (RuntimeException ex) {
+            stage = CompletableFuture.failedFuture(ex);
+        }
+        return stage.whenComplete((result, ex) -> release(clock.getAsLong() - started, ex != null || overloaded.test(result)));
+    }
+
+    private void release(long latency, boolean dropped) {
+        synchronized (this) {
+            if (dropped || latency > latencyTarget) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Let waiting calls through while there's room
+     */
+    private void dispatch() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    return;
+                }
+                next = queue.poll();
+                if (next == null) {
+                    return;
+                }
+                inFlight++;
+            }
+            if (!next.complete(null)) {
+                // Timed out while being let through
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker over the outcome of the latest calls to a backend
+ * <p>
+ * The breaker opens when the share of failed calls in a full window of
+ * calls reaches the threshold. While open, calls fail fast. After the open
+ * time one call is let through as a probe (half open): if it succeeds the
+ * breaker closes, otherwise it opens again.
+ * <p>
+ * Each state change starts a new generation, and a call is tagged with the
+ * generation it was let through in. Outcomes of calls from an older
+ * generation are ignored, so a slow call started before the breaker opened
+ * can't settle the probe, nor count in the window of a closed breaker.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /**
+     * Returned by {@link #tryAcquire()} when the call should fail fast
+     */
+    public static final long REJECTED = -1;
+
+    private final int failureRate;
+    private final long openTime;
+    private final LongSupplier clock;
+    private final boolean[] window;
+    private int next;
+    private int calls;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+    private long generation;
+
+    /**
+     * @param window      number of calls the failure rate is computed over
+     * @param failureRate percentage of failed calls that opens the breaker
+     * @param openTime    how long the breaker stays open before probing
+     */
+    public CircuitBreaker(int window, int failureRate, Duration openTime) {
+        this(window, failureRate, openTime, System::nanoTime);
+    }
+
+    CircuitBreaker(int window, int failureRate, Duration openTime, LongSupplier clock) {
+        this.window = new boolean[Math.max(1, window)];
+        this.failureRate = failureRate;
+        this.openTime = openTime.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * Ask if a call can be made
+     *
+     * @return the permit to record the outcome of the call with, or
+     * {@link #REJECTED} if the call should fail fast
+     */
+    public synchronized long tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return generation;
+            case OPEN:
+                if (clock.getAsLong() - openedAt < openTime) {
+                    return REJECTED;
+                }
+                reset(State.HALF_OPEN);
+                // fall through
+            default:
+                if (probing) {
+                    return REJECTED;
+                }
+                probing = true;
+                return generation;
+        }
+    }
+
+    /**
+     * Record the outcome of a call let through by {@link #tryAcquire()}
+     *
+     * @param permit the permit the call was let through with
+     * @param failed whether the call failed
+     */
+    public synchronized void record(long permit, boolean failed) {
+        if (permit != generation) {
+            // Call let through before the latest state change
+            return;
+        }
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    open();
+                } else {
+                    reset(State.CLOSED);
+                }
+                return;
+            case OPEN:
+                return;
+            default:
+                if (calls == window.length && window[next]) {
+                    failures--;
+                }
+                window[next] = failed;
+                next = (next + 1) % window.length;
+                calls = Math.min(calls + 1, window.length);
+                if (failed) {
+                    failures++;
+                }
+                if (calls == window.length && failures * 100 >= failureRate * calls) {
+                    open();
+                }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        reset(State.OPEN);
+        openedAt = clock.getAsLong();
+    }
+
+    private void reset(State newState) {
+        state = newState;
+        generation++;
+        probing = false;
+        next = 0;
+        calls = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import jakarta.ws.rs.client.Invocation;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * The point in time a request must be answered by
+ * <p>
+ * A deadline follows a request through its calls to MetaProxy and
+ * OpenFormat. Work that hasn't started when the deadline passes is skipped,
+ * HTTP calls are made with a read timeout that ends at the deadline, and
+ * stages still pending at the deadline fail with a
+ * {@link TimeoutException}.
+ */
+public final class Deadline {
+
+    /**
+     * Jersey's client read timeout, as a request property
+     */
+    private static final String READ_TIMEOUT = "jersey.config.client.readTimeout";
+
+    public static final Deadline NONE = new Deadline(false, 0);
+
+    private final boolean bounded;
+    private final long expiresAt;
+
+    private Deadline(boolean bounded, long expiresAt) {
+        this.bounded = bounded;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param timeout time from now, zero means no deadline
+     * @return deadline
+     */
+    public static Deadline after(Duration timeout) {
+        if (timeout.isZero() || timeout.isNegative()) {
+            return NONE;
+        }
+        return new Deadline(true, System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * @param other another deadline
+     * @return the deadline that comes first
+     */
+    public Deadline earliest(Deadline other) {
+        if (!other.bounded) {
+            return this;
+        }
+        if (!bounded || other.expiresAt - expiresAt < 0) {
+            return other;
+        }
+        return this;
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return milliseconds left, at least one
+     */
+    public long remainingMillis() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    /**
+     * Make an HTTP call give up at the deadline
+     *
+     * @param builder the call
+     * @return the call
+     */
+    public Invocation.Builder limit(Invocation.Builder builder) {
+        if (bounded) {
+            builder.property(READ_TIMEOUT, (int) Math.min(Integer.MAX_VALUE, remainingMillis()));
+        }
+        return builder;
+    }
+
+    /**
+     * Stop waiting for a stage at the deadline
+     *
+     * @param stage the stage, which is left alone
+     * @param <T>   result type
+     * @return stage with the same result, or failing with a
+     *         {@link TimeoutException} at the deadline
+     */
+    public <T> CompletionStage<T> bound(CompletionStage<T> stage) {
+        return bound(stage, result -> {
+        });
+    }
+
+    /**
+     * Stop waiting for a stage at the deadline
+     *
+     * @param stage   the stage, which is left alone
+     * @param discard cleanup of a result arriving after the deadline
+     * @param <T>     result type
+     * @return stage with the same result, or failing with a
+     *         {@link TimeoutException} at the deadline
+     */
+    public <T> CompletionStage<T> bound(CompletionStage<T> stage, Consumer<T> discard) {
+        if (!bounded) {
+            return stage;
+        }
+        CompletableFuture<T> source = stage.toCompletableFuture();
+        CompletableFuture<T> limited = source.copy().orTimeout(remainingMillis(), TimeUnit.MILLISECONDS);
+        limited.whenComplete((result, ex) -> {
+            if (ex instanceof TimeoutException) {
+                source.thenAccept(discard);
+            }
+        });
+        return limited;
+    }
+}
@@ -18,6 +18,8 @@
  */
 package dk.dbc.ess.service;
 
+import dk.dbc.ess.service.response.EssResponseWriter;
+
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -38,6 +40,8 @@ public class EssApplication extends Application {
     static {
         classes.add(ExternalSearchService.class);
         classes.add(HowRU.class);
+        classes.add(UsageReportResource.class);
+        classes.add(EssResponseWriter.class);
     }
 
     @Override
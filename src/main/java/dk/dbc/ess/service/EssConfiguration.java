@@ -22,17 +22,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.ejb.EJBException;
 import jakarta.ejb.Startup;
 import jakarta.enterprise.context.ApplicationScoped;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import jakarta.ws.rs.client.Client;
-import jakarta.ws.rs.client.ClientBuilder;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.function.Function;
@@ -49,12 +52,60 @@ public class EssConfiguration  {
 
     private static final Logger log = LoggerFactory.getLogger(EssConfiguration.class);
     private final Map<String, String> env;
-    private Client client;
+    private HttpClientPool metaProxyPool;
+    private HttpClientPool openFormatPool;
     private String metaProxyUrl;
     private String openFormatUrl;
     private List<String> formats;
     private int maxPageSize;
     private List<String> bases;
+    private int openFormatBatchSize;
+    private int formattingThreads;
+    private int formattingQueueMax;
+    private int sruCacheMaxEntries;
+    private Duration sruCacheTtl;
+    private Map<String, Duration> sruCacheBaseTtl;
+    private Duration sruCacheStale;
+    private Duration formatCacheTtl;
+    private int formatCacheSizeMb;
+    private boolean formatPassThrough;
+    private boolean streamResponse;
+    private List<String> prefetchBases;
+    private int prefetchMaxInFlight;
+    private Duration prefetchTtl;
+    private boolean federatedInterleave;
+    private Duration federatedTimeout;
+    private Map<String, Duration> federatedBaseTimeout;
+    private int exportMaxRecords;
+    private int exportPageWindow;
+    private int largePageMaxRows;
+    private int openFormatLimitInitial;
+    private int openFormatLimitMin;
+    private int openFormatLimitMax;
+    private int jerseyMaxThreads;
+    private Duration openFormatLatencyTarget;
+    private int openFormatQueueMax;
+    private Duration openFormatQueueTimeout;
+    private int metaProxyMaxConcurrent;
+    private Map<String, Integer> metaProxyBaseMaxConcurrent;
+    private int breakerWindow;
+    private int breakerFailureRate;
+    private Duration breakerSlowCall;
+    private Duration breakerOpenTime;
+    private Duration requestTimeout;
+    private Map<String, Duration> requestBaseTimeout;
+    private boolean requestTimeoutPartial;
+    private int usageQueueMax;
+    private int usageBatchSize;
+    private Duration usageFlushInterval;
+    private boolean usageLogRaw;
+    private Duration usageRollupInterval;
+    private int usagePartitionsAhead;
+    private int usageRetentionMonths;
+    private boolean usageRetentionDrop;
+    private String usageSpoolFile;
+    private int usageSpoolCapacity;
+    private Duration usageSpoolReplayInterval;
 
     public EssConfiguration() {
         this.env = System.getenv();
@@ -70,13 +121,65 @@ public class EssConfiguration  {
 
     @PostConstruct
     public void loadProperties() {
-        client = ClientBuilder.newBuilder().build();
         Properties props = findProperties("external-search-service");
+        jerseyMaxThreads = getValue(props, env, "jerseyMaxThreads", "JERSEY_MAX_THREADS", "128", "", Integer::parseUnsignedInt);
+        metaProxyPool = clientPool(props);
+        openFormatPool = clientPool(props);
         metaProxyUrl = getValue(props, env, "metaProxyUrl", "META_PROXY_URL", null, "No meta proxy URL found");
         openFormatUrl = getValue(props, env, "openFormatUrl", "OPEN_FORMAT_URL", null, "No OpenFormat URL found");
         formats = getValue(props, env, "formats", "FORMATS", "netpunkt_standard", "No formats specified", s -> Arrays.asList(s.split(",")));
         maxPageSize = getValue(props, env, "maxPageSize", "MAX_PAGE_SIZE", "25", "", Integer::parseUnsignedInt);
         bases = getValue(props, env, "bases", "BASES", null, "No bases provided", s -> Arrays.asList(s.split(",")));
+        openFormatBatchSize = getValue(props, env, "openFormatBatchSize", "OPEN_FORMAT_BATCH_SIZE", "1", "", Integer::parseUnsignedInt);
+        formattingThreads = getValue(props, env, "formattingThreads", "FORMATTING_THREADS", "64", "", Integer::parseUnsignedInt);
+        formattingQueueMax = getValue(props, env, "formattingQueueMax", "FORMATTING_QUEUE_MAX", "1000", "", Integer::parseUnsignedInt);
+        sruCacheMaxEntries = getValue(props, env, "sruCacheMaxEntries", "SRU_CACHE_MAX_ENTRIES", "1000", "", Integer::parseUnsignedInt);
+        sruCacheTtl = getValue(props, env, "sruCacheTtl", "SRU_CACHE_TTL", "0s", "", EssConfiguration::parseDuration);
+        sruCacheBaseTtl = getValue(props, env, "sruCacheBaseTtl", "SRU_CACHE_BASE_TTL", "", "", s -> parseMap(s, EssConfiguration::parseDuration));
+        sruCacheStale = getValue(props, env, "sruCacheStale", "SRU_CACHE_STALE", "0s", "", EssConfiguration::parseDuration);
+        formatCacheTtl = getValue(props, env, "formatCacheTtl", "FORMAT_CACHE_TTL", "0s", "", EssConfiguration::parseDuration);
+        formatCacheSizeMb = getValue(props, env, "formatCacheSizeMb", "FORMAT_CACHE_SIZE_MB", "64", "", Integer::parseUnsignedInt);
+        formatPassThrough = getValue(props, env, "formatPassThrough", "FORMAT_PASS_THROUGH", "false", "", Boolean::parseBoolean);
+        streamResponse = getValue(props, env, "streamResponse", "STREAM_RESPONSE", "false", "", Boolean::parseBoolean);
+        prefetchBases = getValue(props, env, "prefetchBases", "PREFETCH_BASES", "", "", s -> Arrays.asList(s.split(",")));
+        prefetchMaxInFlight = getValue(props, env, "prefetchMaxInFlight", "PREFETCH_MAX_IN_FLIGHT", "4", "", Integer::parseUnsignedInt);
+        prefetchTtl = getValue(props, env, "prefetchTtl", "PREFETCH_TTL", "30s", "", EssConfiguration::parseDuration);
+        federatedInterleave = getValue(props, env, "federatedMerge", "FEDERATED_MERGE", "interleave", "", EssConfiguration::parseInterleave);
+        federatedTimeout = getValue(props, env, "federatedTimeout", "FEDERATED_TIMEOUT", "30s", "", EssConfiguration::parseDuration);
+        federatedBaseTimeout = getValue(props, env, "federatedBaseTimeout", "FEDERATED_BASE_TIMEOUT", "", "", s -> parseMap(s, EssConfiguration::parseDuration));
+        exportMaxRecords = getValue(props, env, "exportMaxRecords", "EXPORT_MAX_RECORDS", "10000", "", Integer::parseUnsignedInt);
+        exportPageWindow = getValue(props, env, "exportPageWindow", "EXPORT_PAGE_WINDOW", "4", "", Integer::parseUnsignedInt);
+        largePageMaxRows = getValue(props, env, "largePageMaxRows", "LARGE_PAGE_MAX_ROWS", "0", "", Integer::parseUnsignedInt);
+        openFormatLimitInitial = getValue(props, env, "openFormatLimitInitial", "OPEN_FORMAT_LIMIT_INITIAL", "20", "", Integer::parseUnsignedInt);
+        openFormatLimitMin = getValue(props, env, "openFormatLimitMin", "OPEN_FORMAT_LIMIT_MIN", "2", "", Integer::parseUnsignedInt);
+        openFormatLimitMax = getValue(props, env, "openFormatLimitMax", "OPEN_FORMAT_LIMIT_MAX", "128", "", Integer::parseUnsignedInt);
+        openFormatLatencyTarget = getValue(props, env, "openFormatLatencyTarget", "OPEN_FORMAT_LATENCY_TARGET", "2s", "", EssConfiguration::parseDuration);
+        openFormatQueueMax = getValue(props, env, "openFormatQueueMax", "OPEN_FORMAT_QUEUE_MAX", "500", "", Integer::parseUnsignedInt);
+        openFormatQueueTimeout = getValue(props, env, "openFormatQueueTimeout", "OPEN_FORMAT_QUEUE_TIMEOUT", "5s", "", EssConfiguration::parseDuration);
+        metaProxyMaxConcurrent = getValue(props, env, "metaProxyMaxConcurrent", "META_PROXY_MAX_CONCURRENT", "50", "", Integer::parseUnsignedInt);
+        metaProxyBaseMaxConcurrent = getValue(props, env, "metaProxyBaseMaxConcurrent", "META_PROXY_BASE_MAX_CONCURRENT", "", "", s -> parseMap(s, Integer::parseUnsignedInt));
+        breakerWindow = getValue(props, env, "breakerWindow", "BREAKER_WINDOW", "20", "", Integer::parseUnsignedInt);
+        breakerFailureRate = getValue(props, env, "breakerFailureRate", "BREAKER_FAILURE_RATE", "50", "", Integer::parseUnsignedInt);
+        breakerSlowCall = getValue(props, env, "breakerSlowCall", "BREAKER_SLOW_CALL", "10s", "", EssConfiguration::parseDuration);
+        breakerOpenTime = getValue(props, env, "breakerOpenTime", "BREAKER_OPEN_TIME", "30s", "", EssConfiguration::parseDuration);
+        requestTimeout = getValue(props, env, "requestTimeout", "REQUEST_TIMEOUT", "0s", "", EssConfiguration::parseDuration);
+        requestBaseTimeout = getValue(props, env, "requestBaseTimeout", "REQUEST_BASE_TIMEOUT", "", "", s -> parseMap(s, EssConfiguration::parseDuration));
+        requestTimeoutPartial = getValue(props, env, "requestTimeoutPartial", "REQUEST_TIMEOUT_PARTIAL", "true", "", Boolean::parseBoolean);
+        if (streamResponse && !requestTimeoutPartial) {
+            // A streamed response is sent with status 200 before its records are formatted
+            throw new EJBException("REQUEST_TIMEOUT_PARTIAL=false cannot be combined with STREAM_RESPONSE=true");
+        }
+        usageQueueMax = getValue(props, env, "usageQueueMax", "USAGE_QUEUE_MAX", "10000", "", Integer::parseUnsignedInt);
+        usageBatchSize = getValue(props, env, "usageBatchSize", "USAGE_BATCH_SIZE", "500", "", Integer::parseUnsignedInt);
+        usageFlushInterval = getValue(props, env, "usageFlushInterval", "USAGE_FLUSH_INTERVAL", "1s", "", EssConfiguration::parseDuration);
+        usageLogRaw = getValue(props, env, "usageLogRaw", "USAGE_LOG_RAW", "true", "", Boolean::parseBoolean);
+        usageRollupInterval = getValue(props, env, "usageRollupInterval", "USAGE_ROLLUP_INTERVAL", "30s", "", EssConfiguration::parseDuration);
+        usagePartitionsAhead = getValue(props, env, "usagePartitionsAhead", "USAGE_PARTITIONS_AHEAD", "3", "", Integer::parseUnsignedInt);
+        usageRetentionMonths = getValue(props, env, "usageRetentionMonths", "USAGE_RETENTION_MONTHS", "0", "", Integer::parseUnsignedInt);
+        usageRetentionDrop = getValue(props, env, "usageRetentionAction", "USAGE_RETENTION_ACTION", "detach", "", EssConfiguration::parseRetentionAction);
+        usageSpoolFile = getValue(props, env, "usageSpoolFile", "USAGE_SPOOL_FILE", "", "");
+        usageSpoolCapacity = getValue(props, env, "usageSpoolCapacity", "USAGE_SPOOL_CAPACITY", "100000", "", Integer::parseUnsignedInt);
+        usageSpoolReplayInterval = getValue(props, env, "usageSpoolReplayInterval", "USAGE_SPOOL_REPLAY_INTERVAL", "10s", "", EssConfiguration::parseDuration);
     }
 
     public String getMetaProxyUrl() { return metaProxyUrl; }
@@ -84,6 +187,55 @@ public class EssConfiguration  {
     public List<String> getFormats() { return formats; }
     public int getMaxPageSize() { return maxPageSize; }
     public List<String> getBases() { return bases; }
+    public int getOpenFormatBatchSize() { return Math.max(1, openFormatBatchSize); }
+    public int getFormattingThreads() { return Math.max(1, formattingThreads); }
+    public int getFormattingQueueMax() { return Math.max(1, formattingQueueMax); }
+    public int getSruCacheMaxEntries() { return sruCacheMaxEntries; }
+    public Duration getSruCacheTtl(String base) { return sruCacheBaseTtl.getOrDefault(base, sruCacheTtl); }
+    public Duration getSruCacheStale() { return sruCacheStale; }
+    public Duration getFormatCacheTtl() { return formatCacheTtl; }
+    public int getFormatCacheSizeMb() { return formatCacheSizeMb; }
+    public boolean isFormatPassThrough() { return formatPassThrough; }
+    public boolean isStreamResponse() { return streamResponse; }
+    public boolean isPrefetchBase(String base) { return prefetchBases.contains(base); }
+    public boolean isPrefetchEnabled() { return prefetchBases.stream().anyMatch(s -> !s.isEmpty()); }
+    public int getPrefetchMaxInFlight() { return prefetchMaxInFlight; }
+    public Duration getPrefetchTtl() { return prefetchTtl; }
+    public boolean isFederatedInterleave() { return federatedInterleave; }
+    public Duration getFederatedTimeout(String base) { return federatedBaseTimeout.getOrDefault(base, federatedTimeout); }
+    public int getExportMaxRecords() { return exportMaxRecords; }
+    public int getExportPageWindow() { return Math.max(1, exportPageWindow); }
+    public int getLargePageMaxRows() { return Math.max(maxPageSize, largePageMaxRows); }
+    public int getOpenFormatLimitInitial() { return openFormatLimitInitial; }
+    public int getOpenFormatLimitMin() { return openFormatLimitMin; }
+    /**
+     * The connector of the clients is blocking, so each OpenFormat request
+     * holds one of the client's asynchronous threads. The limit is capped
+     * at the number of those threads, beyond that the limiter would measure
+     * the queueing for a thread rather than OpenFormat.
+     */
+    public int getOpenFormatLimitMax() { return Math.min(openFormatLimitMax, Math.max(1, jerseyMaxThreads)); }
+    public Duration getOpenFormatLatencyTarget() { return openFormatLatencyTarget; }
+    public int getOpenFormatQueueMax() { return openFormatQueueMax; }
+    public Duration getOpenFormatQueueTimeout() { return openFormatQueueTimeout; }
+    public int getMetaProxyMaxConcurrent(String base) { return Math.max(1, metaProxyBaseMaxConcurrent.getOrDefault(base, metaProxyMaxConcurrent)); }
+    public int getBreakerWindow() { return breakerWindow; }
+    public int getBreakerFailureRate() { return breakerFailureRate; }
+    public Duration getBreakerSlowCall() { return breakerSlowCall; }
+    public Duration getBreakerOpenTime() { return breakerOpenTime; }
+    public Duration getRequestTimeout(String base) { return requestBaseTimeout.getOrDefault(base, requestTimeout); }
+    public boolean isRequestTimeoutPartial() { return requestTimeoutPartial; }
+    public int getUsageQueueMax() { return usageQueueMax; }
+    public int getUsageBatchSize() { return usageBatchSize; }
+    public Duration getUsageFlushInterval() { return usageFlushInterval; }
+    public boolean isUsageLogRaw() { return usageLogRaw; }
+    public Duration getUsageRollupInterval() { return usageRollupInterval; }
+    public int getUsagePartitionsAhead() { return usagePartitionsAhead; }
+    public int getUsageRetentionMonths() { return usageRetentionMonths; }
+    public boolean isUsageRetentionDrop() { return usageRetentionDrop; }
+    public String getUsageSpoolFile() { return usageSpoolFile; }
+    public int getUsageSpoolCapacity() { return usageSpoolCapacity; }
+    public Duration getUsageSpoolReplayInterval() { return usageSpoolReplayInterval; }
 
     private static <T> T getValue(Properties props, Map<String, String> env, String propertyName, String envName, String defaultValue, String error, Function<String, T> mapper) {
         return mapper.apply(getValue(props, env, propertyName, envName, defaultValue, error));
@@ -104,6 +256,87 @@ public class EssConfiguration  {
         return val;
     }
 
+    /**
+     * Parse a duration like 500ms, 30s, 5m or 1h. A number without unit is seconds.
+     *
+     * @param value duration text
+     * @return duration
+     */
+    static Duration parseDuration(String value) {
+        String text = value.trim();
+        try {
+            if (text.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(text.substring(0, text.length() - 2).trim()));
+            } else if (text.endsWith("s")) {
+                return Duration.ofSeconds(Long.parseLong(text.substring(0, text.length() - 1).trim()));
+            } else if (text.endsWith("m")) {
+                return Duration.ofMinutes(Long.parseLong(text.substring(0, text.length() - 1).trim()));
+            } else if (text.endsWith("h")) {
+                return Duration.ofHours(Long.parseLong(text.substring(0, text.length() - 1).trim()));
+            }
+            return Duration.ofSeconds(Long.parseLong(text));
+        } catch (NumberFormatException ex) {
+            throw new EJBException("Invalid duration: " + value, ex);
+        }
+    }
+
+    /**
+     * Parse a federated merge strategy
+     *
+     * @param value interleave or concatenate
+     * @return if records should be interleaved
+     */
+    static boolean parseInterleave(String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "interleave":
+                return true;
+            case "concatenate":
+                return false;
+            default:
+                throw new EJBException("Invalid merge strategy: " + value + " (interleave or concatenate)");
+        }
+    }
+
+    /**
+     * Parse what to do with usage_log partitions past the retention
+     *
+     * @param value detach or drop
+     * @return if partitions should be dropped
+     */
+    static boolean parseRetentionAction(String value) {
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "drop":
+                return true;
+            case "detach":
+                return false;
+            default:
+                throw new EJBException("Invalid usage retention action: " + value + " (detach or drop)");
+        }
+    }
+
+    /**
+     * Parse a comma separated list of key=value pairs, like bibsys=5m,libris=1m
+     *
+     * @param value  list text
+     * @param mapper how to convert the values
+     * @param <T>    value type
+     * @return map from key to value
+     */
+    static <T> Map<String, T> parseMap(String value, Function<String, T> mapper) {
+        Map<String, T> map = new HashMap<>();
+        for (String pair : value.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            String[] parts = pair.split("=", 2);
+            if (parts.length != 2) {
+                throw new EJBException("Invalid key=value pair: " + pair);
+            }
+            map.put(parts[0].trim(), mapper.apply(parts[1].trim()));
+        }
+        return map;
+    }
+
     /**
      * Read properties from a .properties file. Mostly used for internal tests.
      * @param resourceName
@@ -133,8 +366,42 @@ public class EssConfiguration  {
         return new Properties();
     }
 
+    private HttpClientPool clientPool(Properties props) {
+        return new HttpClientPool(
+                getValue(props, env, "jerseyMaxConnections", "JERSEY_MAX_CONNECTIONS", "1024", "", Integer::parseUnsignedInt),
+                getValue(props, env, "jerseyMaxConnectionsPerRoute", "JERSEY_MAX_CONNECTIONS_PER_ROUTE", "1024", "", Integer::parseUnsignedInt),
+                getValue(props, env, "jerseyConnectionTimeout", "JERSEY_CONNECTION_TIMEOUT", "500ms", "", EssConfiguration::parseDuration),
+                getValue(props, env, "jerseyTimeout", "JERSEY_TIMEOUT", "60s", "", EssConfiguration::parseDuration),
+                getValue(props, env, "jerseyPoolTimeout", "JERSEY_POOL_TIMEOUT", "5s", "", EssConfiguration::parseDuration),
+                getValue(props, env, "jerseyTimeToLive", "JERSEY_TIME_TO_LIVE", "1h", "", EssConfiguration::parseDuration),
+                getValue(props, env, "jerseyKeepAlive", "JERSEY_KEEP_ALIVE", "30s", "", EssConfiguration::parseDuration),
+                jerseyMaxThreads,
+                getValue(props, env, "jerseyUserAgent", "JERSEY_USER_AGENT", "ESS (jersey-client/1.0)", ""),
+                getValue(props, env, "jerseyGzip", "JERSEY_GZIP", "true", "", Boolean::parseBoolean),
+                getValue(props, env, "jerseyGzipRequests", "JERSEY_GZIP_REQUESTS", "false", "", Boolean::parseBoolean));
+    }
+
+    @PreDestroy
+    public void close() {
+        metaProxyPool.close();
+        openFormatPool.close();
+    }
+
+    /**
+     * @return client for calls to MetaProxy
+     */
     protected Client getClient() {
-        return client;
+        return metaProxyPool.getClient();
     }
 
+    /**
+     * @return client for calls to OpenFormat
+     */
+    protected Client getOpenFormatClient() {
+        return openFormatPool.getClient();
+    }
+
+    public HttpClientPool getMetaProxyPool() { return metaProxyPool; }
+    public HttpClientPool getOpenFormatPool() { return openFormatPool; }
+
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+
+/**
+ * The formatted pages of an export, fetched ahead of the writer
+ * <p>
+ * At most a window of pages is being fetched and formatted at any time. A
+ * new page is requested only when the writer takes one, so a slow client
+ * slows down the requests to MetaProxy and OpenFormat, rather than having
+ * formatted records pile up.
+ * <p>
+ * Pages are requested back to back, starting where the previous one ends.
+ * The result set is walked by the {@code nextRecordPosition} of each page:
+ * when it is missing the export ends, and when it isn't where the next page
+ * was expected to start, the pages requested ahead are cancelled and the
+ * walk continues from there. A page with fewer records than asked for gives
+ * the difference back to the maximum number of records to export.
+ * <p>
+ * {@link #next()} blocks until the page is formatted, and throws a
+ * {@link java.util.concurrent.CompletionException} if it failed, or a
+ * {@link java.util.concurrent.CancellationException} if the export was
+ * {@link #cancel() cancelled}.
+ */
+class ExportPages implements Iterator<List<Object>> {
+    private static final Logger log = LoggerFactory.getLogger(ExportPages.class);
+
+    private final BiFunction<Integer, Integer, CompletionStage<Page>> loader;
+    private final int pageSize;
+    private final int window;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private int nextStart;
+    private int remaining;
+    private long hits;
+    private Pending taken;
+    private boolean cancelled;
+
+    /**
+     * @param first      the first page, already loaded
+     * @param start      position of the first page
+     * @param rows       number of records asked for in the first page
+     * @param maxRecords maximum number of records to export
+     * @param pageSize   number of records asked for in the following pages
+     * @param window     maximum number of pages being fetched at a time
+     * @param loader     fetches and formats the page at a position with a
+     *                   number of records
+     */
+    ExportPages(Page first, int start, int rows, int maxRecords, int pageSize, int window,
+                BiFunction<Integer, Integer, CompletionStage<Page>> loader) {
+        this.loader = loader;
+        this.pageSize = Math.max(1, pageSize);
+        this.window = Math.max(1, window);
+        this.hits = first.hits;
+        this.nextStart = start + rows;
+        this.remaining = maxRecords - rows;
+        pending.add(new Pending(start, rows, CompletableFuture.completedFuture(first)));
+        fill();
+    }
+
+    /**
+     * The number of records in the result set
+     *
+     * @return hits
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * Stop the export, cancelling the pages that are being fetched
+     * <p>
+     * Called when the client is gone, or the writer has stopped. No more
+     * pages are requested afterwards.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        remaining = 0;
+        if (taken != null) {
+            taken.page.cancel(false);
+        }
+        for (Pending p : pending) {
+            p.page.cancel(false);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public List<Object> next() {
+        Pending current;
+        synchronized (this) {
+            current = pending.poll();
+            taken = current;
+        }
+        if (current == null) {
+            throw new NoSuchElementException();
+        }
+        Page page = current.page.join();
+        synchronized (this) {
+            advance(current, page);
+        }
+        return page.records;
+    }
+
+    private void advance(Pending current, Page page) {
+        if (cancelled) {
+            return;
+        }
+        // Only the records returned count against the budget
+        remaining += Math.max(0, current.rows - page.records.size());
+        if (page.nextRecordPosition == null) {
+            drop();
+        } else if (page.nextRecordPosition != current.start + current.rows) {
+            log.debug("Next record position {} after page at {}, expected {}",
+                      page.nextRecordPosition, current.start, current.start + current.rows);
+            drop();
+            nextStart = page.nextRecordPosition.intValue();
+            if (remaining > 0) {
+                fill();
+            }
+        } else {
+            fill();
+        }
+    }
+
+    private void fill() {
+        while (pending.size() < window && remaining > 0 && nextStart <= hits) {
+            int rows = Math.min(pageSize, remaining);
+            CompletableFuture<Page> page;
+            try {
+                page = loader.apply(nextStart, rows).toCompletableFuture();
+            } catch (RuntimeException ex) {
+                page = CompletableFuture.failedFuture(ex);
+            }
+            pending.add(new Pending(nextStart, rows, page));
+            nextStart += rows;
+            remaining -= rows;
+        }
+    }
+
+    /**
+     * Cancel the pages requested ahead, giving back their records to the
+     * budget
+     */
+    private void drop() {
+        for (Pending p : pending) {
+            p.page.cancel(false);
+            remaining += p.rows;
+        }
+        pending.clear();
+        nextStart = Integer.MAX_VALUE;
+    }
+
+    /**
+     * A formatted page
+     */
+    static class Page {
+        private final long hits;
+        private final Long nextRecordPosition;
+        private final List<Object> records;
+
+        Page(long hits, Long nextRecordPosition, List<Object> records) {
+            this.hits = hits;
+            this.nextRecordPosition = nextRecordPosition;
+            this.records = records;
+        }
+    }
+
+    private static class Pending {
+        private final int start;
+        private final int rows;
+        private final CompletableFuture<Page> page;
+
+        private Pending(int start, int rows, CompletableFuture<Page> page) {
+            this.start = start;
+            this.rows = rows;
+            this.page = page;
+        }
+    }
+}
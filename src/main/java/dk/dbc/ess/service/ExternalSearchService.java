@@ -18,44 +18,59 @@
  */
 package dk.dbc.ess.service;
 
+import dk.dbc.ess.service.cache.SruCache;
+import dk.dbc.ess.service.response.BaseResult;
 import dk.dbc.ess.service.response.EssResponse;
+import dk.dbc.ess.service.response.ExportResponse;
+import dk.dbc.ess.service.response.StreamingEssResponse;
+import dk.dbc.ess.service.sru.SruPage;
+import dk.dbc.ess.service.sru.SruReader;
+import dk.dbc.ess.service.sru.SruRecord;
 import dk.dbc.ess.service.usage.Usage;
 import dk.dbc.ess.service.usage.UsageLogger;
-import dk.dbc.sru.diagnostic.Diagnostic;
-import dk.dbc.sru.sruresponse.Diagnostics;
-import dk.dbc.sru.sruresponse.Record;
-import dk.dbc.sru.sruresponse.RecordXMLEscapingDefinition;
-import dk.dbc.sru.sruresponse.Records;
-import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.eclipse.microprofile.metrics.Counter;
 import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import jakarta.ejb.Asynchronous;
 import jakarta.ejb.EJB;
 import jakarta.ejb.Stateless;
+import jakarta.enterprise.concurrent.ManagedExecutorService;
 import jakarta.inject.Inject;
 import jakarta.validation.constraints.NotNull;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.QueryParam;
-import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.ServerErrorException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.ConnectionCallback;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import javax.xml.stream.XMLStreamException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -66,6 +81,11 @@ import java.util.concurrent.Future;
 public class ExternalSearchService {
     private static final Logger log = LoggerFactory.getLogger(ExternalSearchService.class);
 
+    /**
+     * Header with the time a client is willing to wait for a response, like 5s or 500ms
+     */
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
     @Inject
     public EssConfiguration configuration;
 
@@ -75,17 +95,26 @@ public class ExternalSearchService {
     @Inject
     MetricRegistry metricRegistry;
 
+    @Inject
+    SruCache sruCache;
+
+    @Inject
+    FormattingExecutor formattingExecutor;
+
+    @Inject
+    Prefetcher prefetcher;
+
+    @Inject
+    MetaProxyGuard metaProxyGuard;
+
     @EJB
     UsageLogger usageLogger;
 
-    ExecutorService executorService;
+    @Resource
+    ManagedExecutorService responseExecutor;
 
     private Counter serverErrorsCounter;
 
-    public ExternalSearchService() {
-        this.executorService = Executors.newCachedThreadPool();
-    }
-
     @PostConstruct
     public void init() {
         serverErrorsCounter = metricRegistry.counter("server_errors");
@@ -93,206 +122,630 @@ public class ExternalSearchService {
 
     @GET
     @Path("rpn")
-    public Response requestRPN(@QueryParam("base") @NotNull String base,
-                               @QueryParam("query") @NotNull String query,
-                               @QueryParam("start") Integer start,
-                               @QueryParam("rows") Integer rows,
-                               @QueryParam("format") @NotNull String format,
-                               @QueryParam("clientId") String clientId,
-                               @QueryParam("agencyId") String agencyId,
-                               @QueryParam("trackingId") String trackingId) {
-        return processRequest(base, query, start, rows, format, clientId, agencyId, trackingId, true);
+    @Asynchronous
+    public void requestRPN(@QueryParam("base") @NotNull String base,
+                           @QueryParam("query") @NotNull String query,
+                           @QueryParam("start") Integer start,
+                           @QueryParam("rows") Integer rows,
+                           @QueryParam("format") @NotNull String format,
+                           @QueryParam("clientId") String clientId,
+                           @QueryParam("agencyId") String agencyId,
+                           @QueryParam("trackingId") String trackingId,
+                           @HeaderParam(TIMEOUT_HEADER) String timeout,
+                           @Suspended AsyncResponse asyncResponse) {
+        resume(processRequest(base, query, start, rows, format, clientId, agencyId, trackingId, true, timeout), asyncResponse);
+    }
+
+    @GET
+    @Asynchronous
+    public void requestCQL(@QueryParam("base") @NotNull String base,
+                           @QueryParam("query") @NotNull String query,
+                           @QueryParam("start") Integer start,
+                           @QueryParam("rows") Integer rows,
+                           @QueryParam("format") @NotNull String format,
+                           @QueryParam("clientId") String clientId,
+                           @QueryParam("agencyId") String agencyId,
+                           @QueryParam("trackingId") String trackingId,
+                           @HeaderParam(TIMEOUT_HEADER) String timeout,
+                           @Suspended AsyncResponse asyncResponse) {
+        resume(processRequest(base, query, start, rows, format, clientId, agencyId, trackingId, false, timeout), asyncResponse);
+    }
+
+    @GET
+    @Path("export")
+    @Asynchronous
+    public void requestExportCQL(@QueryParam("base") @NotNull String base,
+                                 @QueryParam("query") @NotNull String query,
+                                 @QueryParam("start") Integer start,
+                                 @QueryParam("max") Integer max,
+                                 @QueryParam("format") @NotNull String format,
+                                 @QueryParam("output") String output,
+                                 @QueryParam("clientId") String clientId,
+                                 @QueryParam("agencyId") String agencyId,
+                                 @QueryParam("trackingId") String trackingId,
+                                 @Suspended AsyncResponse asyncResponse) {
+        export(base, query, start, max, format, output, clientId, agencyId, trackingId, false, asyncResponse);
     }
 
     @GET
-    public Response requestCQL(@QueryParam("base") @NotNull String base,
-                               @QueryParam("query") @NotNull String query,
-                               @QueryParam("start") Integer start,
-                               @QueryParam("rows") Integer rows,
-                               @QueryParam("format") @NotNull String format,
-                               @QueryParam("clientId") String clientId,
-                               @QueryParam("agencyId") String agencyId,
-                               @QueryParam("trackingId") String trackingId) {
-        return processRequest(base, query, start, rows, format, clientId, agencyId, trackingId, false);
+    @Path("export/rpn")
+    @Asynchronous
+    public void requestExportRPN(@QueryParam("base") @NotNull String base,
+                                 @QueryParam("query") @NotNull String query,
+                                 @QueryParam("start") Integer start,
+                                 @QueryParam("max") Integer max,
+                                 @QueryParam("format") @NotNull String format,
+                                 @QueryParam("output") String output,
+                                 @QueryParam("clientId") String clientId,
+                                 @QueryParam("agencyId") String agencyId,
+                                 @QueryParam("trackingId") String trackingId,
+                                 @Suspended AsyncResponse asyncResponse) {
+        export(base, query, start, max, format, output, clientId, agencyId, trackingId, true, asyncResponse);
     }
 
-    private Response processRequest(String base, String query, Integer start, Integer rows, String format,
-                                    String clientId, String agencyId, String trackingId, boolean isRPN) {
+    /**
+     * Send the export when its first page is ready
+     * <p>
+     * The export is written by the thread resuming the request, and that
+     * thread waits for the following pages while writing. So the request is
+     * resumed from the managed executor, like other responses, and neither
+     * the asynchronous EJB thread nor the thread loading the first page
+     * waits for the export.
+     * <p>
+     * When the client disconnects, or the request times out before the first
+     * page is ready, the export is cancelled, and the pages being fetched are
+     * abandoned.
+     */
+    private void export(String base, String query, Integer start, Integer max, String format, String output,
+                        String clientId, String agencyId, String trackingId, boolean isRPN, AsyncResponse asyncResponse) {
+        CompletableFuture<Void> cancelled = new CompletableFuture<>();
+        asyncResponse.register((ConnectionCallback) disconnected -> cancelled.complete(null));
+        Duration timeout = configuration.getRequestTimeout(base);
+        if (!timeout.isZero()) {
+            asyncResponse.setTimeoutHandler(timedOut -> {
+                cancelled.complete(null);
+                timedOut.resume(deadlineExceeded());
+            });
+            asyncResponse.setTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        processExport(base, query, start, max, format, output, clientId, agencyId, trackingId, isRPN, cancelled)
+                .whenCompleteAsync((response, ex) -> {
+                    if (cancelled.isDone()) {
+                        return;
+                    }
+                    if (ex != null) {
+                        asyncResponse.resume(ex);
+                    } else {
+                        asyncResponse.resume(response);
+                    }
+                }, responseExecutor);
+    }
+
+    /**
+     * Send the response when it is ready
+     * <p>
+     * The response is written by the thread resuming the request, and a
+     * streamed response waits for records to be formatted while writing. So
+     * responses are resumed from the managed executor, rather than from the
+     * thread completing the response, which may be a client, formatting or
+     * timer thread that a slow client would hold up. The asynchronous EJB
+     * thread doesn't wait for the response either.
+     */
+    private void resume(CompletionStage<Response> response, AsyncResponse asyncResponse) {
+        response.thenAcceptAsync(asyncResponse::resume, responseExecutor);
+    }
+
+    /**
+     * Search MetaProxy and format the records found
+     * <p>
+     * No thread is blocked while waiting for MetaProxy or OpenFormat, the
+     * returned stage completes when the response is ready. It never completes
+     * exceptionally, failures are reported as error responses.
+     * <p>
+     * A comma separated list of bases makes a federated search, see
+     * {@link #processFederated}.
+     * <p>
+     * The request has a deadline, the earliest of the client's timeout and
+     * the configured timeout of the base. When it passes, MetaProxy and
+     * OpenFormat calls are given up, and records not yet formatted are
+     * replaced by error documents in the response. Unless partial responses
+     * are disabled, then the response is a 504.
+     *
+     * @param timeout time the client will wait, or null
+     * @return stage with the response to send to the client
+     */
+    CompletionStage<Response> processRequest(String base, String query, Integer start, Integer rows, String format,
+                                             String clientId, String agencyId, String trackingId, boolean isRPN, String timeout) {
         if (start == null) {
             start = 1;
         }
-        if (rows == null || rows >= configuration.getMaxPageSize()) {
+        if (rows == null) {
             rows = configuration.getMaxPageSize();
+        } else if (rows >= configuration.getLargePageMaxRows()) {
+            rows = configuration.getLargePageMaxRows();
         }
         if (trackingId == null || trackingId.isEmpty()) {
             trackingId = UUID.randomUUID().toString();
         }
-        if (!configuration.getBases().contains(base)) {
-            return serverError("Unknown base requested");
+        List<String> bases = Arrays.stream(base.split(","))
+                .map(String::trim)
+                .distinct()
+                .collect(Collectors.toList());
+        if (!configuration.getBases().containsAll(bases)) {
+            return CompletableFuture.completedFuture(serverError("Unknown base requested"));
+        }
+        Deadline requested;
+        try {
+            requested = timeout == null || timeout.isBlank() ? Deadline.NONE : Deadline.after(EssConfiguration.parseDuration(timeout));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Invalid " + TIMEOUT_HEADER + " header").build());
         }
         log.info("base: {}; format: {}; start: {}; rows: {}; clientId: {}; agencyId: {}; trackingId: {}; query: {}; type: {}",
                 base, format, start, rows, clientId, agencyId, trackingId, query, isRPN ? "rpn" : "cql");
 
-        Usage usage = null;
-        try {
-            String queryParam = isRPN ? "x-pquery" : "query";
-            Response response = requestSru(base, queryParam, query, start, rows);
+        final String tracking = trackingId;
+        String queryParam = isRPN ? "x-pquery" : "query";
+        final int first = start;
+        final int count = rows;
+        if (bases.size() > 1) {
+            return processFederated(bases, queryParam, query, first, count, format, clientId, agencyId, tracking, requested)
+                    .exceptionally(ex -> internalError(ex, tracking));
+        }
+        String single = bases.get(0);
+        Deadline deadline = requested.earliest(Deadline.after(configuration.getRequestTimeout(single)));
+        PageFormatting pageFormatting = new PageFormatting(formatting, configuration.getOpenFormatBatchSize(),
+                                                           format, single + ":", tracking, deadline);
+        return fetchPage(single, queryParam, query, first, count, pageFormatting, tracking, deadline)
+                .thenCompose(page -> processSru(page, pageFormatting, single, clientId, agencyId, tracking)
+                        .whenComplete((response, ex) -> prefetchNext(page, single, queryParam, query, count, format)))
+                .exceptionally(ex -> internalError(ex, tracking));
+    }
 
-            if (!response.getStatusInfo().equals(Response.Status.OK)) {
-                log.error("Search failed with http code: " + response.getStatusInfo() + " for: " + trackingId);
-                return serverError("Internal Server Error");
+    private Response internalError(Throwable ex, String trackingId) {
+        Throwable cause = Futures.unwrap(ex);
+        if (cause instanceof RejectedExecutionException) {
+            log.error("Request rejected: " + cause.getMessage() + " for: " + trackingId);
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Base unavailable").build();
+        }
+        if (cause instanceof TimeoutException) {
+            log.error("Deadline passed waiting for MetaProxy for: " + trackingId);
+            return deadlineExceeded();
+        }
+        log.error("Error Processing Response: " + cause.getMessage() + " for: " + trackingId);
+        log.debug("Error Processing Response:", cause);
+        return serverError("Internal Server Error");
+    }
+
+    /**
+     * Get a page from the cache or MetaProxy, sending its records to
+     * formatting as they are read
+     * <p>
+     * A page larger than the maximum page size is fetched as concurrent
+     * pages of the maximum size, which are put together in order. Parts
+     * starting after the last record of the result set are left out, as
+     * MetaProxy answers them with an out of range diagnostic.
+     * <p>
+     * The returned stage fails with a {@link TimeoutException} if the page
+     * isn't there by the deadline. The fetch itself may be shared with other
+     * requests, so it is given the configured timeout of the base rather
+     * than this request's deadline.
+     */
+    private CompletionStage<SruPage> fetchPage(String base, String queryParam, String query, int start, int rows,
+                                               PageFormatting pageFormatting, String trackingId, Deadline deadline) {
+        int pageSize = configuration.getMaxPageSize();
+        if (rows > pageSize) {
+            List<PageFormatting> parts = new ArrayList<>();
+            List<CompletionStage<SruPage>> pages = new ArrayList<>();
+            for (int partStart = start; partStart < start + rows; partStart += pageSize) {
+                PageFormatting part = pageFormatting.part();
+                parts.add(part);
+                pages.add(fetchPage(base, queryParam, query, partStart, Math.min(pageSize, start + rows - partStart), part,
+                                    trackingId, deadline));
             }
+            return Futures.all(pages)
+                    .thenApply(list -> {
+                        Long hits = list.get(0).getNumberOfRecords();
+                        int found = list.size();
+                        if (hits != null) {
+                            found = (int) Math.max(1, Math.min(list.size(), (hits - start) / pageSize + 1));
+                        }
+                        for (int i = 0; i < found; i++) {
+                            parts.get(i).addAll(list.get(i).getRecords());
+                        }
+                        pageFormatting.join(parts.subList(0, found));
+                        return SruPage.join(list.subList(0, found));
+                    });
+        }
+        return deadline.bound(sruCache.get(SruCache.key(base, queryParam, query, start, rows),
+                                           (onRecord, tracking) -> searchSru(base, queryParam, query, start, rows,
+                                                                             Deadline.after(configuration.getRequestTimeout(base)),
+                                                                             onRecord, tracking),
+                                           pageFormatting.streaming(), trackingId));
+    }
 
-            SearchRetrieveResponse sru = responseSru(response);
+    /**
+     * Search several bases in parallel, and merge their records
+     * <p>
+     * Every base is searched with the same start and rows, and its records
+     * are formatted as they arrive. A base gets the configured time to
+     * respond, after which it is reported as failed. The hits of the response
+     * is the sum of the hits of the bases that answered, and the outcome of
+     * each base is listed in the response. Only if all bases fail does the
+     * request fail.
+     */
+    private CompletionStage<Response> processFederated(List<String> bases, String queryParam, String query, int start, int rows,
+                                                       String format, String clientId, String agencyId, String trackingId,
+                                                       Deadline requested) {
+        List<CompletionStage<BasePage>> pages = new ArrayList<>(bases.size());
+        for (String base : bases) {
+            Deadline deadline = requested.earliest(Deadline.after(configuration.getRequestTimeout(base)));
+            PageFormatting pageFormatting = new PageFormatting(formatting, configuration.getOpenFormatBatchSize(),
+                                                               format, base + ":", trackingId, deadline);
+            CompletionStage<SruPage> page;
+            try {
+                page = fetchPage(base, queryParam, query, start, rows, pageFormatting, trackingId, deadline);
+            } catch (RuntimeException ex) {
+                page = CompletableFuture.failedFuture(ex);
+            }
+            // Copy, so a timeout doesn't fail a page other requests are waiting for
+            pages.add(page.toCompletableFuture().copy()
+                    .orTimeout(configuration.getFederatedTimeout(base).toMillis(), TimeUnit.MILLISECONDS)
+                    .handle((p, ex) -> new BasePage(base, p, pageFormatting, ex)));
+        }
+        return Futures.all(pages)
+                .thenCompose(results -> buildFederatedResponse(results, trackingId, clientId, agencyId));
+    }
 
-            try { // metaProxy can return a 200 OK response with error messages in it, so we check for "Diagnostics"
-                Diagnostics sruDiagnostics = sru.getDiagnostics();
-                List<Diagnostic> diagList = sruDiagnostics.getDiagnostics();
-                StringBuilder details = new StringBuilder();
-                for (Diagnostic d: diagList) {
-                    details.append(d.getDetails());
-                    log.error("Error encountered in SRU response (details): " + d.getDetails());
-                    log.error("Error encountered in SRU response (message): " + d.getMessage());
-                }
-                Response.ResponseBuilder rb = Response.status(Response.Status.BAD_GATEWAY);
-                rb.entity(details.toString());
-                return rb.build();
-            } catch (NullPointerException dnpe) { } //NOPMD
-            // no diagnostics is a good thing, carry on...
-
-            // We got a non-error/no-diagnostics response from metaproxy, so the external database was definitely hit
-            usage = new Usage()
-                    .withDatabaseId(base)
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    private CompletionStage<Response> buildFederatedResponse(List<BasePage> results, String trackingId,
+                                                             String clientId, String agencyId) {
+        List<BaseResult> bases = new ArrayList<>(results.size());
+        List<PageFormatting> formatted = new ArrayList<>(results.size());
+        List<List<CompletionStage<Object>>> records = new ArrayList<>(results.size());
+        List<Usage> usages = new ArrayList<>(results.size());
+        StringBuilder errors = new StringBuilder();
+        long hits = 0;
+        for (BasePage result : results) {
+            String error = result.error(trackingId);
+            if (error != null) {
+                bases.add(new BaseResult(result.base, null, error));
+                errors.append(result.base).append(": ").append(error).append("\n");
+                continue;
+            }
+            List<SruRecord> recordList = result.page.getRecords();
+            result.pageFormatting.addAll(recordList);
+            records.add(result.pageFormatting.records());
+            formatted.add(result.pageFormatting);
+            hits += result.page.getNumberOfRecords();
+            bases.add(new BaseResult(result.base, result.page.getNumberOfRecords(), null));
+            usages.add(new Usage()
+                    .withDatabaseId(result.base)
                     .withClientId(clientId)
-                    .withAgencyId(agencyId);
+                    .withAgencyId(agencyId)
+                    .withRecordCount(recordList.size()));
+        }
+        if (records.isEmpty()) {
+            Response.ResponseBuilder rb = Response.status(Response.Status.BAD_GATEWAY);
+            rb.entity(errors.toString());
+            return CompletableFuture.completedFuture(rb.build());
+        }
 
-            return buildResponse(sru, format, base + ":", trackingId, usage);
+        List<CompletionStage<Object>> merged = merge(records, configuration.isFederatedInterleave());
+        CompletionStage<Response> stage;
+        if (configuration.isStreamResponse()) {
+            List<CompletionStage<List<Object>>> batches = merged.stream()
+                    .map(record -> record.thenApply(List::of))
+                    .collect(Collectors.toList());
+            StreamingEssResponse stream = new StreamingEssResponse(hits, batches, trackingId, bases);
+            stage = CompletableFuture.completedFuture(Response.ok(stream, MediaType.APPLICATION_XML_TYPE).build());
+        } else {
+            EssResponse essResponse = new EssResponse();
+            essResponse.hits = hits;
+            essResponse.trackingId = trackingId;
+            essResponse.bases = bases;
+            stage = Futures.all(merged)
+                    .thenApply(list -> {
+                        if (!configuration.isRequestTimeoutPartial() &&
+                            formatted.stream().anyMatch(f -> f.deadline().isExpired())) {
+                            return deadlineExceeded();
+                        }
+                        essResponse.records = list;
+                        return Response.ok(essResponse, MediaType.APPLICATION_XML_TYPE).build();
+                    });
+        }
+        return stage.whenComplete((r, ex) -> usages.forEach(this::logUsage));
+    }
 
-        } catch (Exception ex) {
-            log.error("Error Processing Response: " + ex.getMessage() + " for: " + trackingId);
-            log.debug("Error Processing Response:", ex);
-        } finally {
-            if (usage != null) {
-                try {
-                    usageLogger.log(usage);
-                } catch (RuntimeException e) {
-                    log.error("Unable to update usage log", e);
-                    serverErrorsCounter.inc();
+    /**
+     * Merge the records of several bases
+     *
+     * @param lists      the records of each base
+     * @param interleave take a record from each base in turn, instead of all
+     *                   records of one base before those of the next
+     * @param <T>        record type
+     * @return all records
+     */
+    static <T> List<T> merge(List<List<T>> lists, boolean interleave) {
+        List<T> merged = new ArrayList<>();
+        if (!interleave) {
+            lists.forEach(merged::addAll);
+            return merged;
+        }
+        int longest = lists.stream().mapToInt(List::size).max().orElse(0);
+        for (int i = 0; i < longest; i++) {
+            for (List<T> list : lists) {
+                if (i < list.size()) {
+                    merged.add(list.get(i));
                 }
             }
         }
-        return serverError("Internal Server Error");
+        return merged;
     }
 
+    /**
+     * Export a result set, by walking it page by page
+     * <p>
+     * The first page is fetched before responding, so a failing search is
+     * reported with an error status. The rest are fetched while the export
+     * is written, see {@link ExportPages}.
+     *
+     * @param max    maximum number of records, capped by the configuration
+     * @param output xml (default) or ndjson
+     * @return stage with the response to send to the client
+     */
+    CompletionStage<Response> processExport(String base, String query, Integer start, Integer max, String format, String output,
+                                            String clientId, String agencyId, String trackingId, boolean isRPN,
+                                            CompletableFuture<Void> cancelled) {
+        if (start == null) {
+            start = 1;
+        }
+        int maxRecords = configuration.getExportMaxRecords();
+        if (max != null && max < maxRecords) {
+            maxRecords = Math.max(0, max);
+        }
+        if (trackingId == null || trackingId.isEmpty()) {
+            trackingId = UUID.randomUUID().toString();
+        }
+        ExportResponse.Format exportFormat;
+        if (output == null || output.equalsIgnoreCase("xml")) {
+            exportFormat = ExportResponse.Format.XML;
+        } else if (output.equalsIgnoreCase("ndjson")) {
+            exportFormat = ExportResponse.Format.NDJSON;
+        } else {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Unknown output requested").build());
+        }
+        if (!configuration.getBases().contains(base)) {
+            return CompletableFuture.completedFuture(serverError("Unknown base requested"));
+        }
+        log.info("export base: {}; format: {}; output: {}; start: {}; max: {}; clientId: {}; agencyId: {}; trackingId: {}; query: {}; type: {}",
+                 base, format, exportFormat, start, maxRecords, clientId, agencyId, trackingId, query, isRPN ? "rpn" : "cql");
+
+        final String tracking = trackingId;
+        String queryParam = isRPN ? "x-pquery" : "query";
+        final int first = start;
+        final int limit = maxRecords;
+        int pageSize = configuration.getMaxPageSize();
+        int rows = Math.min(pageSize, limit);
+        return loadExportPage(base, queryParam, query, first, rows, format, tracking, cancelled)
+                .thenApply(page -> {
+                    ExportPages pages = new ExportPages(page, first, rows, limit, pageSize, configuration.getExportPageWindow(),
+                                                        (s, r) -> loadExportPage(base, queryParam, query, s, r, format, tracking, cancelled));
+                    cancelled.thenRun(pages::cancel);
+                    Usage usage = new Usage()
+                            .withDatabaseId(base)
+                            .withClientId(clientId)
+                            .withAgencyId(agencyId);
+                    ExportResponse export = new ExportResponse(pages, exportFormat, count -> {
+                        pages.cancel();
+                        log.info("Exported {} of {} records for: {}", count, pages.getHits(), tracking);
+                        logUsage(usage.withRecordCount(count));
+                    });
+                    return Response.ok(export, exportFormat.getMediaType()).build();
+                })
+                .exceptionally(ex -> {
+                    Throwable cause = Futures.unwrap(ex);
+                    if (cause instanceof WebApplicationException) {
+                        return Response.status(((WebApplicationException) cause).getResponse().getStatus())
+                                .entity(cause.getMessage()).build();
+                    }
+                    return internalError(ex, tracking);
+                });
+    }
+
+    /**
+     * Fetch and format one page of an export
+     * <p>
+     * Export pages bypass the SRU cache, a harvest would only push out the
+     * pages of interactive searches.
+     */
+    private CompletionStage<ExportPages.Page> loadExportPage(String base, String queryParam, String query, int start, int rows,
+                                                             String format, String trackingId, CompletableFuture<Void> cancelled) {
+        if (cancelled.isDone()) {
+            return CompletableFuture.failedFuture(new CancellationException());
+        }
+        PageFormatting pageFormatting = new PageFormatting(formatting, configuration.getOpenFormatBatchSize(),
+                                                           format, base + ":", trackingId, Deadline.NONE);
+        return searchSru(base, queryParam, query, start, rows, Deadline.NONE, pageFormatting.streaming(), trackingId)
+                .thenCompose(page -> {
+                    if (cancelled.isDone()) {
+                        throw new CancellationException();
+                    }
+                    if (page.hasDiagnostics()) {
+                        StringBuilder details = new StringBuilder();
+                        for (SruPage.Diagnostic d : page.getDiagnostics()) {
+                            details.append(d.getDetails());
+                            log.error("Error encountered in SRU response (details): " + d.getDetails());
+                            log.error("Error encountered in SRU response (message): " + d.getMessage());
+                        }
+                        throw new ServerErrorException(details.toString(), Response.Status.BAD_GATEWAY);
+                    }
+                    Long hits = page.getNumberOfRecords();
+                    if (hits == null) {
+                        log.error("Error reading record data from SearchRetrieveResponse: no numberOfRecords");
+                        throw new ServerErrorException("Error extracting records from MetaProxy response", Response.Status.BAD_GATEWAY);
+                    }
+                    pageFormatting.addAll(page.getRecords());
+                    return pageFormatting.finish()
+                            .thenApply(records -> new ExportPages.Page(hits, page.getNextRecordPosition(), records));
+                });
+    }
+
+    /**
+     * Prefetch the page following a page just served, if enabled for the base
+     */
+    private void prefetchNext(SruPage page, String base, String queryParam, String query, int rows, String format) {
+        Long next = page.getNextRecordPosition();
+        if (next == null || page.hasDiagnostics() || rows > configuration.getMaxPageSize() ||
+            !configuration.isPrefetchBase(base)) {
+            return;
+        }
+        int start = next.intValue();
+        prefetcher.prefetch(SruCache.key(base, queryParam, query, start, rows),
+                            (onRecord, tracking) -> searchSru(base, queryParam, query, start, rows, Deadline.NONE, onRecord, tracking),
+                            format, base + ":");
+    }
+
+    /**
+     * Search MetaProxy, and read the page, sending its records to onRecord
+     * as they are read
+     * <p>
+     * The call is guarded until the whole response has been read, so a
+     * MetaProxy that stalls while sending the body keeps holding its
+     * bulkhead permit, and counts as a slow call.
+     */
+    private CompletionStage<SruPage> searchSru(String base, String queryParam, String query, int start, int rows,
+                                               Deadline deadline, Consumer<SruRecord> onRecord, String trackingId) {
+        return metaProxyGuard.call(base, () -> requestSru(base, queryParam, query, start, rows, deadline)
+                                           .thenApplyAsync(response -> readSru(response, onRecord, trackingId), formattingExecutor),
+                                   page -> false);
+    }
+
+    private SruPage readSru(Response response, Consumer<SruRecord> onRecord, String trackingId) {
+        if (!response.getStatusInfo().equals(Response.Status.OK)) {
+            log.error("Search failed with http code: " + response.getStatusInfo() + " for: " + trackingId);
+            response.close();
+            throw new IllegalStateException("MetaProxy responded with http code: " + response.getStatusInfo());
+        }
+        try {
+            return responseSru(response, onRecord);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private CompletionStage<Response> processSru(SruPage page, PageFormatting pageFormatting, String base,
+                                                 String clientId, String agencyId, String trackingId) {
+        // metaProxy can return a 200 OK response with error messages in it, so we check for "Diagnostics"
+        if (page.hasDiagnostics()) {
+            StringBuilder details = new StringBuilder();
+            for (SruPage.Diagnostic d : page.getDiagnostics()) {
+                details.append(d.getDetails());
+                log.error("Error encountered in SRU response (details): " + d.getDetails());
+                log.error("Error encountered in SRU response (message): " + d.getMessage());
+            }
+            Response.ResponseBuilder rb = Response.status(Response.Status.BAD_GATEWAY);
+            rb.entity(details.toString());
+            return CompletableFuture.completedFuture(rb.build());
+        }
+
+        // We got a non-error/no-diagnostics response from metaproxy, so the external database was definitely hit
+        Usage usage = new Usage()
+                .withDatabaseId(base)
+                .withClientId(clientId)
+                .withAgencyId(agencyId);
+
+        CompletionStage<Response> stage;
+        try {
+            stage = buildResponse(page, pageFormatting, trackingId, usage);
+        } catch (RuntimeException ex) {
+            stage = CompletableFuture.failedFuture(ex);
+        }
+        return stage.whenComplete((r, ex) -> logUsage(usage));
+    }
+
+    private void logUsage(Usage usage) {
+        try {
+            usageLogger.log(usage);
+        } catch (RuntimeException e) {
+            log.error("Unable to update usage log", e);
+            serverErrorsCounter.inc();
+        }
+    }
+
+    /**
+     * Build the response from a page, and the formatting of its records
+     * <p>
+     * If the page was read from MetaProxy for this request, its records have
+     * already been sent to formatting while they were read. Otherwise they are
+     * sent now.
+     * <p>
+     * In streaming mode the response is ready at once, and its records are
+     * written as they are formatted.
+     */
     @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
-    Response buildResponse(SearchRetrieveResponse sru, String outputFormat, String idPrefix, String trackingId,
-                           Usage usage)
-        throws InterruptedException, ExecutionException {
-        final String controlField = "controlfield";
-        final String zeroZeroOne = "001";
+    CompletionStage<Response> buildResponse(SruPage page, PageFormatting pageFormatting, String trackingId, Usage usage) {
         EssResponse essResponse = new EssResponse();
-        essResponse.records = new ArrayList<>();
         essResponse.trackingId = trackingId;
-        Records recs = null;
 
-        try {
-            Long hits = sru.getNumberOfRecords();
-            log.debug("Number of records read was: " + hits.toString());
-            essResponse.hits = sru.getNumberOfRecords();
-            recs = sru.getRecords();
-        } catch (NullPointerException npe) {
-            log.error("Error reading record data from SearchRetrieveResponse", npe);
+        Long hits = page.getNumberOfRecords();
+        if (hits == null) {
+            log.error("Error reading record data from SearchRetrieveResponse: no numberOfRecords");
             Response.ResponseBuilder rb = Response.status(Response.Status.BAD_GATEWAY);
             rb.entity("Error extracting records from MetaProxy response");
-            return rb.build();
-        }
-
-        if (recs != null) {
-            List<Record> recordList = recs.getRecords();
-            List<Future<Element>> futures = new ArrayList<>(recordList.size());
-            usage.withRecordCount(recordList.size());
-            log.debug("Sending records to OpenFormat...");
-            for (Record record : recordList) {
-                Future<Element> future;
-                RecordXMLEscapingDefinition esc = record.getRecordXMLEscaping();
-                if (esc != RecordXMLEscapingDefinition.XML) {
-                    log.error("Expected xml escaped record in response, got: " + esc);
-                    future = executorService.submit(formatting.formattingError("Internal Server Error"));
-                }
-                else {
-                    List<Object> content = record.getRecordData().getContent();
-                    if (content.size() == 1) {
-                        Object obj = content.get(0);
-                        if (obj instanceof  Element) {
-                            String remoteId = null;
-                            Element e = (Element) obj;
-                            for (Node child = e.getFirstChild(); child != null; child = child.getNextSibling()) {
-                                if (child.getNodeType() == Node.ELEMENT_NODE && controlField.equals(child.getLocalName())) {
-                                    NamedNodeMap attributes = child.getAttributes();
-                                    Node tag = attributes.getNamedItem("tag");
-                                    if (tag != null && zeroZeroOne.equals(tag.getNodeValue())) {
-                                        Node id = child.getFirstChild();
-                                        if (id.getNodeType() == Node.TEXT_NODE) {
-                                            remoteId = idPrefix + id.getNodeValue().trim();
-                                        }
-                                        break;
-                                    }
-                                }
-                            }
-                            if (remoteId == null) {
-                                remoteId = idPrefix + UUID.randomUUID().toString();
-                            }
-                            future = executorService.submit(formatting.formattingCall(e, outputFormat, remoteId, trackingId));
-                        }
-                        else {
-                            log.error("Not of type XML: " + obj.getClass().getCanonicalName() + ". This should not happen.");
-                            future = executorService.submit(formatting.formattingError("Internal Server Error"));
-                        }
-                    }
-                    else {
-                        log.error("Expected 1 record in response, but got " + content.size());
-                        log.debug("Types: ");
-                        for (Object o : content) {
-                            log.debug(o.getClass().getCanonicalName());
-                        }
-                        future = executorService.submit(formatting.formattingError("Internal Server Error"));
-                    }
-                }
-                futures.add(future);
-            }
-            for (Future<Element> f : futures) {
-                essResponse.records.add(f.get());
-            }
-            log.debug("All records returned from OpenFormat...");
+            return CompletableFuture.completedFuture(rb.build());
+        }
+        log.debug("Number of records read was: " + hits);
+        essResponse.hits = hits;
+
+        List<SruRecord> recordList = page.getRecords();
+        usage.withRecordCount(recordList.size());
+        pageFormatting.addAll(recordList);
+        log.debug("Sending records to OpenFormat...");
+        if (configuration.isStreamResponse()) {
+            StreamingEssResponse stream = new StreamingEssResponse(hits, pageFormatting.batches(), trackingId);
+            return CompletableFuture.completedFuture(Response.ok(stream, MediaType.APPLICATION_XML_TYPE).build());
         }
-        return Response.ok(essResponse, MediaType.APPLICATION_XML_TYPE).build();
+        return pageFormatting.finish()
+                .thenApply(records -> {
+                    log.debug("All records returned from OpenFormat...");
+                    if (!configuration.isRequestTimeoutPartial() && pageFormatting.deadline().isExpired()) {
+                        log.error("Deadline passed while formatting records for: " + trackingId);
+                        return deadlineExceeded();
+                    }
+                    essResponse.records = new ArrayList<>(records);
+                    return Response.ok(essResponse, MediaType.APPLICATION_XML_TYPE).build();
+                });
     }
 
     @Timed(name = "call-meta-proxy")
-    Response requestSru(String base, String queryParam, String query, Integer start, Integer stepValue)
-            throws Exception {
-        Invocation invocation = configuration.getClient()
-                .target(configuration.getMetaProxyUrl())
-                .path(base)
-                .queryParam(queryParam, query)
-                .queryParam("startRecord", start)
-                .queryParam("maximumRecords", stepValue)
-                .request(MediaType.APPLICATION_XML_TYPE)
-                .buildGet();
+    CompletionStage<Response> requestSru(String base, String queryParam, String query, Integer start, Integer stepValue,
+                                         Deadline deadline) {
         log.debug("Sending request to MetaProxy...");
-        Response res =  invocation.invoke();
-        log.debug("Response from MetaProxy was: " + res);
-        return res;
+        return deadline.limit(configuration.getClient()
+                                      .target(configuration.getMetaProxyUrl())
+                                      .path(base)
+                                      .queryParam(queryParam, query)
+                                      .queryParam("startRecord", start)
+                                      .queryParam("maximumRecords", stepValue)
+                                      .request(MediaType.APPLICATION_XML_TYPE))
+                .rx()
+                .get()
+                .whenComplete((res, ex) -> log.debug("Response from MetaProxy was: " + res));
     }
 
     @Timed(name = "read-response-entity")
-    SearchRetrieveResponse responseSru(Response response) throws Exception {
-        try {
-            return response.readEntity(SearchRetrieveResponse.class);
-        }
-        catch (ProcessingException pe) {
+    SruPage responseSru(Response response, Consumer<SruRecord> onRecord) throws Exception {
+        try (InputStream is = response.readEntity(InputStream.class)) {
+            return SruReader.read(is, onRecord);
+        } catch (ProcessingException | XMLStreamException ex) {
             log.error("Error when reading entity SearchRetrieveResponse from response");
-            throw pe;
+            throw ex;
+        } finally {
+            response.close();
         }
     }
 
@@ -300,4 +753,55 @@ public class ExternalSearchService {
         return Response.serverError().entity(message).build();
     }
 
+    private static Response deadlineExceeded() {
+        return Response.status(Response.Status.GATEWAY_TIMEOUT).entity("Deadline exceeded").build();
+    }
+
+    /**
+     * The page of one base in a federated search, or why there is none
+     */
+    private static final class BasePage {
+        private final String base;
+        private final SruPage page;
+        private final PageFormatting pageFormatting;
+        private final Throwable failure;
+
+        private BasePage(String base, SruPage page, PageFormatting pageFormatting, Throwable failure) {
+            this.base = base;
+            this.page = page;
+            this.pageFormatting = pageFormatting;
+            this.failure = failure;
+        }
+
+        private String error(String trackingId) {
+            if (failure != null) {
+                Throwable cause = Futures.unwrap(failure);
+                if (cause instanceof TimeoutException) {
+                    log.error("Search of base {} timed out for: {}", base, trackingId);
+                    return "Timeout";
+                }
+                if (cause instanceof RejectedExecutionException) {
+                    log.error("Search of base {} rejected: {} for: {}", base, cause.getMessage(), trackingId);
+                    return "Unavailable";
+                }
+                log.error("Search of base {} failed: {} for: {}", base, cause.getMessage(), trackingId);
+                log.debug("Search failed:", cause);
+                return "Search failed";
+            }
+            if (page.hasDiagnostics()) {
+                StringBuilder details = new StringBuilder();
+                for (SruPage.Diagnostic d : page.getDiagnostics()) {
+                    details.append(d.getDetails());
+                    log.error("Error encountered in SRU response from {} (details): {}", base, d.getDetails());
+                    log.error("Error encountered in SRU response from {} (message): {}", base, d.getMessage());
+                }
+                return details.toString();
+            }
+            if (page.getNumberOfRecords() == null) {
+                log.error("Error reading record data from SearchRetrieveResponse of {}: no numberOfRecords", base);
+                return "Error extracting records from MetaProxy response";
+            }
+            return null;
+        }
+    }
 }
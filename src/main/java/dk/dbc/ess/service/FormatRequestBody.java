@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The JSON body of an OpenFormat request, written straight to the connection
+ * <p>
+ * Each record is sent as
+ * {@code <input><identifier>id</identifier>record</input>}. Rather than
+ * building that as a string per record, and have it escaped into the JSON
+ * document by an object mapper, the wrapper and the record are escaped as
+ * they are written.
+ *
+ * @param <T> type of the records
+ */
+public final class FormatRequestBody<T> implements StreamingOutput {
+
+    private static final String[] CONTROL_ESCAPES = new String[0x20];
+
+    static {
+        for (int c = 0; c < CONTROL_ESCAPES.length; c++) {
+            CONTROL_ESCAPES[c] = String.format("\\u%04x", c);
+        }
+        CONTROL_ESCAPES['\b'] = "\\b";
+        CONTROL_ESCAPES['\t'] = "\\t";
+        CONTROL_ESCAPES['\n'] = "\\n";
+        CONTROL_ESCAPES['\f'] = "\\f";
+        CONTROL_ESCAPES['\r'] = "\\r";
+    }
+
+    private final Collection<String> formats;
+    private final String trackingId;
+    private final List<T> records;
+    private final Function<T, String> id;
+    private final Function<T, String> xml;
+
+    /**
+     * @param formats    OpenFormat format names
+     * @param trackingId tracking id passed on to OpenFormat
+     * @param records    records to format
+     * @param id         the identifier of a record
+     * @param xml        the serialized record
+     */
+    public FormatRequestBody(Collection<String> formats, String trackingId, List<T> records,
+                             Function<T, String> id, Function<T, String> xml) {
+        this.formats = formats;
+        this.trackingId = trackingId;
+        this.records = records;
+        this.id = id;
+        this.xml = xml;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+        writer.write("{\"formats\":[");
+        String separator = "";
+        for (String format : formats) {
+            writer.write(separator);
+            writeString(writer, format);
+            separator = ",";
+        }
+        writer.write("],\"trackingId\":");
+        if (trackingId == null) {
+            writer.write("null");
+        } else {
+            writeString(writer, trackingId);
+        }
+        writer.write(",\"objects\":[");
+        separator = "";
+        for (T record : records) {
+            writer.write(separator);
+            writer.write("{\"object\":\"<input><identifier>");
+            writeEscaped(writer, id.apply(record), true);
+            writer.write("</identifier>");
+            writeEscaped(writer, xml.apply(record), false);
+            writer.write("</input>\"}");
+            separator = ",";
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static void writeString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        writeEscaped(writer, text, false);
+        writer.write('"');
+    }
+
+    /**
+     * Write text as the content of a JSON string
+     *
+     * @param xmlText whether the text should be escaped as XML character data
+     *                too
+     */
+    private static void writeEscaped(Writer writer, String text, boolean xmlText) throws IOException {
+        final int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final String escape = escape(text.charAt(i), xmlText);
+            if (escape != null) {
+                writer.write(text, start, i - start);
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        writer.write(text, start, length - start);
+    }
+
+    private static String escape(char c, boolean xmlText) {
+        if (c < 0x20) {
+            return CONTROL_ESCAPES[c];
+        }
+        switch (c) {
+            case '"':
+                return xmlText ? "&quot;" : "\\\"";
+            case '\\':
+                return "\\\\";
+            case '&':
+                return xmlText ? "&amp;" : null;
+            case '<':
+                return xmlText ? "&lt;" : null;
+            case '>':
+                return xmlText ? "&gt;" : null;
+            case '\'':
+                return xmlText ? "&apos;" : null;
+            default:
+                return null;
+        }
+    }
+}
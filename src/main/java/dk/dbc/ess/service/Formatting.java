@@ -18,17 +18,19 @@
  */
 package dk.dbc.ess.service;
 
-import dk.dbc.open.format.dto.FormatRequest;
+import dk.dbc.ess.service.cache.FormattedRecordCache;
+import dk.dbc.ess.service.response.RecordFragment;
 import dk.dbc.open.format.dto.FormatResponse;
+import jakarta.annotation.PostConstruct;
 import jakarta.ejb.Singleton;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.client.Client;
-import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
-import jakarta.ws.rs.client.Invocation;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.apache.commons.text.StringEscapeUtils;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,24 +43,29 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 @Singleton
 public class Formatting {
@@ -67,165 +74,504 @@ public class Formatting {
     @Inject
     public EssConfiguration configuration;
 
-    private final String openFormatUrl;
-    private final Client client;
+    @Inject
+    FormattingExecutor formattingExecutor;
+
+    @Inject
+    FormattedRecordCache formattedRecordCache;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private String openFormatUrl;
+    private Client client;
+    private SingleFlight<String, Outcome> formatFlights;
+    private AdaptiveLimiter limiter;
 
     public Formatting() {
-        if (configuration != null) {
-            this.openFormatUrl = configuration.getOpenFormatUrl();
-            this.client = configuration.getClient();
-        }
-        else {
-            Map<String, String> env = System.getenv();
-            if (env.containsKey("OPEN_FORMAT_URL")) {
-                this.openFormatUrl = env.get("OPEN_FORMAT_URL");
-            }
-            else {
-                this.openFormatUrl = null;
-            }
-            this.client = ClientBuilder.newBuilder().build();
-        }
     }
 
     // for integration test
     public Formatting(EssConfiguration conf) {
-        this.openFormatUrl = conf.getOpenFormatUrl();
-        this.client = conf.getClient();
+        this.configuration = conf;
+        configure(conf.getOpenFormatClient(), () -> {
+        }, () -> {
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        HttpClientPool pool = configuration.getOpenFormatPool();
+        pool.setWaitListener(metricRegistry.histogram("openformat_pool_wait_ms")::update);
+        metricRegistry.gauge("openformat_pool_leased", pool::getLeased);
+        metricRegistry.gauge("openformat_pool_available", pool::getAvailable);
+        metricRegistry.gauge("openformat_pool_pending", pool::getPending);
+        metricRegistry.gauge("openformat_pool_utilization", pool::getUtilization);
+        final Counter coalesced = metricRegistry.counter("format_coalesced");
+        final Counter shed = metricRegistry.counter("openformat_shed");
+        configure(pool.getClient(), coalesced::inc, shed::inc);
+        metricRegistry.gauge("format_in_flight", formatFlights::size);
+        metricRegistry.gauge("openformat_limit", limiter::getLimit);
+        metricRegistry.gauge("openformat_in_flight", limiter::getInFlight);
+        metricRegistry.gauge("openformat_queued", limiter::getQueued);
+        metricRegistry.gauge("xml_documentbuilder_reused", XmlTools::getDocumentBuilderReused);
+        metricRegistry.gauge("xml_documentbuilder_created", XmlTools::getDocumentBuilderCreated);
+        metricRegistry.gauge("xml_transformer_reused", XmlTools::getTransformerReused);
+        metricRegistry.gauge("xml_transformer_created", XmlTools::getTransformerCreated);
+    }
+
+    private void configure(Client client, Runnable onCoalesced, Runnable onShed) {
+        this.openFormatUrl = configuration.getOpenFormatUrl();
+        this.client = client;
+        this.formatFlights = new SingleFlight<>(onCoalesced);
+        this.limiter = new AdaptiveLimiter(configuration.getOpenFormatLimitInitial(), configuration.getOpenFormatLimitMin(),
+                                           configuration.getOpenFormatLimitMax(), configuration.getOpenFormatLatencyTarget(),
+                                           configuration.getOpenFormatQueueMax(), configuration.getOpenFormatQueueTimeout(),
+                                           onShed);
     }
 
     public static final ErrorDocument ERROR_DOCUMENT = new ErrorDocument();
 
+    static final String TIMEOUT = "Formatting error - timeout";
+    static final String INTERNAL_ERROR = "Internal Server Error";
+    static final String BUSY = "Formatting error - server busy";
+    static final String UNEXPECTED_COUNT = "Formatting error - server error: unexpected number of objects";
+    static final String FORMAT_MISSING = "Formatting error - content error: format missing";
+
     @Timed(name = "call-openformat")
-    static Response InvokeUrl(Client client, String openFormatUrl, FormatRequest request) {
-        Invocation invocation = client.target(openFormatUrl)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .buildPost(Entity.entity(request, MediaType.APPLICATION_JSON_TYPE));
-        return invocation.invoke();
+    static CompletionStage<Response> InvokeUrl(Client client, String openFormatUrl, FormatRequestBody<?> request, Deadline deadline) {
+        return deadline.limit(client.target(openFormatUrl)
+                                      .request(MediaType.APPLICATION_JSON_TYPE))
+                .rx()
+                .post(Entity.entity(request, MediaType.APPLICATION_JSON_TYPE));
     }
 
-    private Element format(Element in, String outputFormat, String id, String trackingId) {
+    private CompletionStage<List<Object>> format(List<Source> sources, String outputFormat, String trackingId, boolean prefetch,
+                                                 Deadline deadline) {
+        CompletableFuture<List<Input>> inputs;
         try {
-            final FormatRequest formatRequest = getFormatRequest(outputFormat, in, id, trackingId);
+            inputs = CompletableFuture.supplyAsync(() -> inputs(sources, deadline), formattingExecutor);
+        } catch (RejectedExecutionException ex) {
+            inputs = CompletableFuture.failedFuture(ex);
+        }
+        return inputs
+                .thenCompose(i -> formatInputs(i, outputFormat, trackingId, prefetch, deadline))
+                .exceptionally(ex -> {
+                    Throwable cause = Futures.unwrap(ex);
+                    if (cause instanceof TimeoutException) {
+                        log.warn("Deadline passed before formatting of: {} - {}", ids(sources), trackingId);
+                        return errors(sources.size(), TIMEOUT);
+                    }
+                    if (cause instanceof RejectedExecutionException) {
+                        log.warn("Formatting rejected: {} for: {} - {}", cause.getMessage(), ids(sources), trackingId);
+                        return errors(sources.size(), BUSY);
+                    }
+                    log.error("Error processing records: {} for: {} - {}", cause.getClass(), ids(sources), trackingId, cause);
+                    return errors(sources.size(), INTERNAL_ERROR);
+                });
+    }
+
+    private List<Input> inputs(List<Source> sources, Deadline deadline) {
+        if (deadline.isExpired()) {
+            throw new CompletionException(new TimeoutException("Deadline passed"));
+        }
+        final List<Input> inputs = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            final String cacheKey = FormattedRecordCache.recordKey(source.identified ? source.id : null, source.xml);
+            inputs.add(new Input(source.id, source.xml, cacheKey));
+        }
+        return inputs;
+    }
+
+    /**
+     * Format records, taking those that have been formatted before from the
+     * cache and requesting the rest from OpenFormat
+     * <p>
+     * Records that are being formatted for another request already, are not
+     * requested again. They share the result of the request in flight.
+     */
+    private CompletionStage<List<Object>> formatInputs(List<Input> inputs, String outputFormat, String trackingId, boolean prefetch,
+                                                       Deadline deadline) {
+        final List<CompletionStage<Object>> records = new ArrayList<>(inputs.size());
+        final List<Input> leading = new ArrayList<>(inputs.size());
+        final List<SingleFlight<String, Outcome>.Flight> flights = new ArrayList<>(inputs.size());
+        for (Input input : inputs) {
+            final String formatted = formattedRecordCache.get(input.cacheKey, outputFormat);
+            if (formatted != null) {
+                records.add(CompletableFuture.completedFuture(record(Outcome.formatted(formatted), input, outputFormat, trackingId, false, prefetch)));
+                continue;
+            }
+            final SingleFlight<String, Outcome>.Flight flight = formatFlights.begin(outputFormat + ":" + input.cacheKey);
+            if (flight.isLeader()) {
+                leading.add(input);
+                flights.add(flight);
+            }
+            final boolean store = flight.isLeader();
+            records.add(flight.stage().thenApply(outcome -> record(outcome, input, outputFormat, trackingId, store, prefetch)));
+        }
+        if (!leading.isEmpty()) {
+            CompletionStage<List<Outcome>> outcomes;
+            try {
+                outcomes = requestFormatting(leading, outputFormat, trackingId, deadline);
+            } catch (RuntimeException ex) {
+                outcomes = CompletableFuture.failedFuture(ex);
+            }
+            outcomes.whenComplete((list, ex) -> {
+                for (int i = 0; i < flights.size(); i++) {
+                    flights.get(i).complete(ex == null ? list.get(i) : Outcome.error(INTERNAL_ERROR));
+                }
+            });
+        }
+        return Futures.all(records);
+    }
+
+    /**
+     * Request formatting from OpenFormat
+     * <p>
+     * The request gives up at the deadline. Records that are being waited
+     * for by other requests too, time out with the deadline of the request
+     * that sent them to OpenFormat.
+     */
+    private CompletionStage<List<Outcome>> requestFormatting(List<Input> inputs, String outputFormat, String trackingId, Deadline deadline) {
+        if (deadline.isExpired()) {
+            log.warn("Deadline passed before requesting formatting of: {} - {}", inputIds(inputs), trackingId);
+            return CompletableFuture.completedFuture(Outcome.errors(inputs.size(), TIMEOUT));
+        }
+        final FormatRequestBody<Input> formatRequest = new FormatRequestBody<>(Set.of(outputFormat), trackingId, inputs,
+                                                                              input -> input.id, input -> input.xml);
+        return deadline.bound(limiter.submit(() -> InvokeUrl(client, openFormatUrl, formatRequest, deadline), Formatting::overloaded),
+                              Response::close)
+                .thenApplyAsync(response -> formatResponse(response, inputs, outputFormat, trackingId), formattingExecutor)
+                .exceptionally(ex -> {
+                    Throwable cause = Futures.unwrap(ex);
+                    if (cause instanceof TimeoutException) {
+                        log.warn("Deadline passed while formatting: {} - {}", inputIds(inputs), trackingId);
+                        return Outcome.errors(inputs.size(), TIMEOUT);
+                    }
+                    if (cause instanceof RejectedExecutionException) {
+                        log.warn("OpenFormat request rejected: {} for: {} - {}", cause.getMessage(), inputIds(inputs), trackingId);
+                        return Outcome.errors(inputs.size(), BUSY);
+                    }
+                    log.error("Error processing records: {} for: {} - {}", cause.getClass(), inputIds(inputs), trackingId, cause);
+                    return Outcome.errors(inputs.size(), INTERNAL_ERROR);
+                });
+    }
+
+    /**
+     * OpenFormat is considered overloaded, when it says it is busy or fails
+     */
+    private static boolean overloaded(Response response) {
+        final int status = response.getStatus();
+        return status == 429 || status >= 500;
+    }
 
-            Response response = InvokeUrl(client, openFormatUrl, formatRequest);
+    private List<Outcome> formatResponse(Response response, List<Input> inputs, String outputFormat, String trackingId) {
+        try {
             Response.StatusType status = response.getStatusInfo();
             log.debug("status = {}", status);
 
             if (status.equals(Response.Status.OK)) {
                 final FormatResponse formatResponse = response.readEntity(FormatResponse.class);
-                final FormatResponse.Formatted formattedObject = formatResponse.getObjects().get(0).get(outputFormat);
-
-                final String error = formattedObject.getError();
-                if (error != null) {
-                    log.error("Openformat responded with: {} for: {} - {}", error, id, trackingId);
-                    return error("Formatting error - content error: " + error);
+                final List<Map<String, FormatResponse.Formatted>> objects = formatResponse.getObjects();
+                if (objects == null || objects.size() != inputs.size()) {
+                    log.error("OpenFormat responded with {} objects for {} records for: {}",
+                            objects == null ? 0 : objects.size(), inputs.size(), trackingId);
+                    return Outcome.errors(inputs.size(), UNEXPECTED_COUNT);
                 }
-
-                return getFormattedElement(formattedObject.getFormatted());
+                final List<Outcome> outcomes = new ArrayList<>(inputs.size());
+                for (int i = 0; i < inputs.size(); i++) {
+                    outcomes.add(formatted(objects.get(i), outputFormat, inputs.get(i), trackingId));
+                }
+                return outcomes;
             } else {
-                log.error("OpenFormat responded http status: {} for: {} - {}", status, id, trackingId);
-                return error("Formatting error - server error: status=" + status);
+                log.error("OpenFormat responded http status: {} for: {} - {}", status, inputIds(inputs), trackingId);
+                return Outcome.errors(inputs.size(), "Formatting error - server error: status=" + status);
             }
         } catch (Exception ex) {
-            log.error("Error processing record: {} for: {} - {}", ex.getClass(), id, trackingId, ex);
+            log.error("Error processing records: {} for: {} - {}", ex.getClass(), inputIds(inputs), trackingId, ex);
+        } finally {
+            response.close();
         }
-        return ERROR_DOCUMENT.getDocument("Internal Server Error");
+        return Outcome.errors(inputs.size(), INTERNAL_ERROR);
     }
 
-    private FormatRequest getFormatRequest(String displayFormat, Element input, String id, String trackingId) {
-        final String inputXmlString =
-                "<input>" +
-                   "<identifier>" + StringEscapeUtils.escapeXml11(id) + "</identifier>" +
-                   transformElementToString(input) +
-                "</input>";
-        log.trace("input = {}", inputXmlString);
-
-        final FormatRequest.ObjectSource objectSource = new FormatRequest.ObjectSource();
-        objectSource.setObject(inputXmlString);
+    private Outcome formatted(Map<String, FormatResponse.Formatted> object, String outputFormat, Input input, String trackingId) {
+        final FormatResponse.Formatted formattedObject = object == null ? null : object.get(outputFormat);
+        if (formattedObject == null) {
+            log.error("Openformat responded without format: {} for: {} - {}", outputFormat, input.id, trackingId);
+            return Outcome.error(FORMAT_MISSING);
+        }
 
-        final FormatRequest formatRequest = new FormatRequest();
-        formatRequest.setFormats(Set.of(displayFormat));
-        formatRequest.setTrackingId(trackingId);
-        formatRequest.setObjects(List.of(objectSource));
+        final String error = formattedObject.getError();
+        if (error != null) {
+            log.error("Openformat responded with: {} for: {} - {}", error, input.id, trackingId);
+            return Outcome.error("Formatting error - content error: " + error);
+        }
+        return Outcome.formatted(formattedObject.getFormatted());
+    }
 
-        return formatRequest;
+    /**
+     * Make the response record for a record
+     *
+     * @param store    whether successfully formatted records should be cached
+     * @param prefetch whether the record is formatted ahead of being requested
+     */
+    private Object record(Outcome outcome, Input input, String outputFormat, String trackingId, boolean store, boolean prefetch) {
+        if (outcome.error != null) {
+            return error(outcome.error);
+        }
+        final Object record = formattedRecord(outcome.formatted, input.id, trackingId);
+        if (record == null) {
+            return error(INTERNAL_ERROR);
+        }
+        if (store && prefetch) {
+            formattedRecordCache.putPrefetched(input.cacheKey, outputFormat, outcome.formatted);
+        } else if (store) {
+            formattedRecordCache.put(input.cacheKey, outputFormat, outcome.formatted);
+        }
+        return record;
     }
 
-    private Element getFormattedElement(String formatted) throws ParserConfigurationException, IOException, SAXException {
-        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        final Document parsedDocument = documentBuilder.parse(new InputSource(new StringReader(formatted)));
-        final Element parsedElement = parsedDocument.getDocumentElement();
-        final String format = parsedElement.getAttribute("format");
-
-        final Document formattedDocument = documentBuilder.newDocument();
-        final Element formattedElement = formattedDocument.createElementNS("http://oss.dbc.dk/ns/openformat", format);
-        final NodeList parsedElementChildNodes = parsedElement.getChildNodes();
-        for (int i = 0; i < parsedElementChildNodes.getLength(); i++) {
-            final Node child = formattedDocument.importNode(parsedElementChildNodes.item(i), true);
-            formattedElement.appendChild(child);
+    /**
+     * Turn OpenFormat output into a record for the response
+     * <p>
+     * In pass-through mode this is a {@link RecordFragment}, unless the
+     * output cannot be rewritten as text. Otherwise it is a DOM element.
+     *
+     * @return the record or null if the output is unusable
+     */
+    private Object formattedRecord(String formatted, String id, String trackingId) {
+        try {
+            if (configuration != null && configuration.isFormatPassThrough()) {
+                final RecordFragment fragment = RecordFragment.fromOpenFormat(formatted);
+                if (fragment != null) {
+                    return fragment;
+                }
+            }
+            return getFormattedElement(formatted);
+        } catch (Exception ex) {
+            log.error("Error processing record: {} for: {} - {}", ex.getClass(), id, trackingId, ex);
+            return null;
         }
-        return formattedElement;
     }
 
-    private String transformElementToString(Element element) {
+    static Element getFormattedElement(String formatted) throws ParserConfigurationException, IOException, SAXException {
+        final DocumentBuilder documentBuilder = XmlTools.borrowDocumentBuilder();
         try {
-            final TransformerFactory transFactory = TransformerFactory.newInstance();
-            final Transformer transformer = transFactory.newTransformer();
-            final StringWriter buffer = new StringWriter();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.transform(new DOMSource(element), new StreamResult(buffer));
-            return buffer.toString();
-        } catch (TransformerConfigurationException e) {
-            throw new IllegalStateException(e);
-        } catch (TransformerException e) {
-            throw new IllegalArgumentException(e);
+            final Document parsedDocument = documentBuilder.parse(new InputSource(new StringReader(formatted)));
+            final Element parsedElement = parsedDocument.getDocumentElement();
+            final String format = parsedElement.getAttribute("format");
+
+            final Document formattedDocument = documentBuilder.newDocument();
+            final Element formattedElement = formattedDocument.createElementNS("http://oss.dbc.dk/ns/openformat", format);
+            final NodeList parsedElementChildNodes = parsedElement.getChildNodes();
+            for (int i = 0; i < parsedElementChildNodes.getLength(); i++) {
+                final Node child = formattedDocument.importNode(parsedElementChildNodes.item(i), true);
+                formattedElement.appendChild(child);
+            }
+            return formattedElement;
+        } finally {
+            XmlTools.release(documentBuilder);
         }
     }
 
-    private Element error(String message) {
+    /**
+     * Make an error document, as text in pass-through mode
+     */
+    private Object error(String message) {
+        if (configuration != null && configuration.isFormatPassThrough()) {
+            return ERROR_DOCUMENT.getFragment(message);
+        }
         return ERROR_DOCUMENT.getDocument(message);
     }
 
-    public Callable<Element> formattingCall(Element in, String outputFormat, String id, String trackingId) {
-        return () -> format(in, outputFormat, id, trackingId);
+    private List<Object> errors(int count, String message) {
+        final List<Object> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(error(message));
+        }
+        return elements;
+    }
+
+    private static String ids(List<Source> sources) {
+        return sources.stream().map(source -> source.id).collect(Collectors.joining(","));
     }
 
-    public Callable<Element> formattingError(String message) {
-        return new FormattingError(message);
+    private static String inputIds(List<Input> inputs) {
+        return inputs.stream().map(input -> input.id).collect(Collectors.joining(","));
     }
 
-    public class FormattingError implements Callable<Element> {
-        private final String message;
-        public FormattingError(String message) {
-            this.message = message;
+    /**
+     * Format a number of records using a single OpenFormat request
+     * <p>
+     * The formatted records are returned in the same order as the sources,
+     * records that could not be formatted are replaced by an error document
+     *
+     * @param sources      records to format
+     * @param outputFormat OpenFormat format name
+     * @param trackingId   tracking id passed on to OpenFormat
+     * @param deadline     when records not yet formatted are replaced by
+     *                     error documents
+     * @return stage producing one element per source
+     */
+    public CompletionStage<List<Object>> formattingCall(List<Source> sources, String outputFormat, String trackingId, Deadline deadline) {
+        return format(sources, outputFormat, trackingId, false, deadline);
+    }
+
+    /**
+     * Format records ahead of them being requested, keeping the results in
+     * the formatted record cache
+     *
+     * @param sources      records to format
+     * @param outputFormat OpenFormat format name
+     * @param trackingId   tracking id passed on to OpenFormat
+     * @return stage producing one element per source
+     */
+    public CompletionStage<List<Object>> prefetchCall(List<Source> sources, String outputFormat, String trackingId) {
+        return format(sources, outputFormat, trackingId, true, Deadline.NONE);
+    }
+
+    public CompletionStage<List<Object>> formattingError(String message) {
+        return formattingError(message, 1);
+    }
+
+    public CompletionStage<List<Object>> formattingError(String message, int count) {
+        return CompletableFuture.completedFuture(errors(count, message));
+    }
+
+    /**
+     * A record to be formatted, and the identifier OpenFormat should know it by
+     */
+    public static class Source {
+        private final String xml;
+        private final String id;
+        private final boolean identified;
+
+        /**
+         * @param xml        the serialized record
+         * @param id         identifier of the record
+         * @param identified whether the id is the remote id of the record,
+         *                   rather than one made up for this request
+         */
+        public Source(String xml, String id, boolean identified) {
+            this.xml = xml;
+            this.id = id;
+            this.identified = identified;
+        }
+    }
+
+    /**
+     * Result of formatting a record: OpenFormat output or an error message
+     */
+    private static class Outcome {
+        private final String formatted;
+        private final String error;
+
+        private Outcome(String formatted, String error) {
+            this.formatted = formatted;
+            this.error = error;
         }
 
-        @Override
-        public Element call() throws Exception {
-            return error(message);
+        private static Outcome formatted(String formatted) {
+            return new Outcome(formatted, null);
+        }
+
+        private static Outcome error(String message) {
+            return new Outcome(null, message);
+        }
+
+        private static List<Outcome> errors(int count, String message) {
+            return Collections.nCopies(count, error(message));
         }
     }
 
+    /**
+     * A serialized record, and the key it is cached by
+     */
+    private static class Input {
+        private final String id;
+        private final String xml;
+        private final String cacheKey;
+
+        private Input(String id, String xml, String cacheKey) {
+            this.id = id;
+            this.xml = xml;
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    /**
+     * The error document records are replaced by, when they can't be
+     * formatted
+     * <p>
+     * Error documents are made without a shared lock, as an outage of
+     * OpenFormat turns every record of every request into one. DOM documents
+     * are parsed from the template text with a pooled document builder, as
+     * a shared DOM isn't safe to read from several threads. Fragments are cut
+     * from the serialized template, and those for the handful of fixed
+     * messages are cached.
+     */
     public static class ErrorDocument {
-        private Document doc;
-        private Element node;
-        private int[] pos;
+        private static final String MARKER = "\uE000";
+        private static final List<String> FIXED_MESSAGES = List.of(INTERNAL_ERROR, TIMEOUT, BUSY, UNEXPECTED_COUNT, FORMAT_MISSING);
+
+        private final String xml;
+        private final int[] pos;
+        private final String prefix;
+        private final String suffix;
+        private final Map<String, RecordFragment> fragments;
 
         public ErrorDocument() {
             try (InputStream is = Formatting.class.getResourceAsStream("/error_document.xml")) {
-                this.doc = XmlTools.newDocumentBuilder().parse(is);
-                this.node = doc.getDocumentElement();
+                this.xml = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                Element node = parse(xml);
                 LinkedList<Integer> list = findMessagePath(node);
                 if (list == null) {
                     throw new RuntimeException("Unable to find message node");
                 }
                 this.pos = list.stream().mapToInt(i -> i).toArray();
+                final String serialized = serialize(withMessage(MARKER));
+                final int marker = serialized.indexOf(MARKER);
+                this.prefix = serialized.substring(0, marker);
+                this.suffix = serialized.substring(marker + MARKER.length());
+                this.fragments = FIXED_MESSAGES.stream()
+                        .collect(Collectors.toUnmodifiableMap(message -> message, this::makeFragment));
+            } catch (SAXException | IOException | TransformerException ex) {
+                throw new RuntimeException("Error creating error document", ex);
+            }
+        }
+
+        private static Element parse(String xml) throws SAXException, IOException {
+            final DocumentBuilder documentBuilder = XmlTools.borrowDocumentBuilder();
+            try {
+                return documentBuilder.parse(new InputSource(new StringReader(xml))).getDocumentElement();
+            } finally {
+                XmlTools.release(documentBuilder);
+            }
+        }
+
+        private Element parseTemplate() {
+            try {
+                Element node = parse(xml);
+                findMessagePath(node);
+                return node;
             } catch (SAXException | IOException ex) {
                 throw new RuntimeException("Error creating error document", ex);
             }
         }
 
+        private static String serialize(Element element) throws TransformerException {
+            final Transformer transformer = XmlTools.borrowTransformer();
+            try {
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                final StringWriter writer = new StringWriter();
+                transformer.transform(new DOMSource(element), new StreamResult(writer));
+                return writer.toString();
+            } finally {
+                XmlTools.release(transformer);
+            }
+        }
+
         private static LinkedList<Integer> findMessagePath(Node n) {
             int pos = 0;
             for (Node child = n.getFirstChild() ; child != null ; child = child.getNextSibling(), pos++) {
@@ -250,14 +596,41 @@ public class Formatting {
             return null;
         }
 
-        public synchronized Element getDocument(String content) {
-            Node copy = node.cloneNode(true);
-            Node msg = copy;
+        /**
+         * Parse the template into a document of its own, with the message
+         */
+        private Element withMessage(String content) {
+            final Element node = parseTemplate();
+            Node msg = node;
             for (int index : pos) {
                 msg = msg.getChildNodes().item(index);
             }
-            msg.appendChild(doc.createTextNode(content));
-            return (Element) copy;
+            msg.appendChild(node.getOwnerDocument().createTextNode(content));
+            return node;
+        }
+
+        /**
+         * @param content the error message
+         * @return error document as a DOM element
+         */
+        public Element getDocument(String content) {
+            return withMessage(content);
+        }
+
+        /**
+         * The fragments of the fixed error messages are made once, others
+         * are made on demand
+         *
+         * @param content the error message
+         * @return error document as serialized XML
+         */
+        public RecordFragment getFragment(String content) {
+            final RecordFragment fragment = fragments.get(content);
+            return fragment != null ? fragment : makeFragment(content);
+        }
+
+        private RecordFragment makeFragment(String content) {
+            return RecordFragment.of(prefix + StringEscapeUtils.escapeXml10(content) + suffix);
         }
     }
 }
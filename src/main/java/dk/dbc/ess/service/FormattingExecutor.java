@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application wide thread pool for formatting records
+ * <p>
+ * The number of threads is capped by the configuration, tasks beyond that
+ * are queued. This keeps the thread count predictable under bursty load.
+ * <p>
+ * The queue is bounded too, when it is full a task is rejected with a
+ * {@link RejectedExecutionException}, so overload fails fast as 503 rather
+ * than waiting in line.
+ */
+@ApplicationScoped
+public class FormattingExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(FormattingExecutor.class);
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private ThreadPoolExecutor executor;
+    private Counter rejected;
+
+    @PostConstruct
+    public void init() {
+        int threads = configuration.getFormattingThreads();
+        int queueMax = configuration.getFormattingQueueMax();
+        log.info("Starting formatting executor with {} threads and {} queued tasks", threads, queueMax);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(queueMax), threadFactory(),
+                                          new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        metricRegistry.gauge("formatting_executor_active", executor::getActiveCount);
+        metricRegistry.gauge("formatting_executor_queued", () -> executor.getQueue().size());
+        rejected = metricRegistry.counter("formatting_executor_rejected");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Formatting executor did not terminate in time, {} tasks dropped",
+                         executor.shutdownNow().size());
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param task to run on a formatting thread
+     * @throws RejectedExecutionException if the queue is full
+     */
+    @Override
+    public void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            rejected.inc();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "formatting-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for composing {@link CompletionStage}s
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Find the exception that caused a stage to fail
+     *
+     * @param throwable exception as seen by a dependent stage
+     * @return the original exception
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) &&
+               throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    /**
+     * Combine a list of stages into one, keeping the order
+     *
+     * @param stages stages producing lists
+     * @param <T>    type of list elements
+     * @return stage with all the elements, completes when all stages have
+     */
+    public static <T> CompletableFuture<List<T>> concat(List<? extends CompletionStage<List<T>>> stages) {
+        CompletableFuture<?>[] futures = stages.stream()
+                .map(CompletionStage::toCompletableFuture)
+                .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(futures)
+                .thenApply(ignored -> {
+                    List<T> result = new ArrayList<>();
+                    for (CompletionStage<List<T>> stage : stages) {
+                        result.addAll(stage.toCompletableFuture().join());
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Combine a list of stages into one, keeping the order
+     *
+     * @param stages stages producing values
+     * @param <T>    type of values
+     * @return stage with all the values, completes when all stages have
+     */
+    public static <T> CompletableFuture<List<T>> all(List<? extends CompletionStage<T>> stages) {
+        CompletableFuture<?>[] futures = stages.stream()
+                .map(CompletionStage::toCompletableFuture)
+                .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(futures)
+                .thenApply(ignored -> {
+                    List<T> result = new ArrayList<>(stages.size());
+                    for (CompletionStage<T> stage : stages) {
+                        result.add(stage.toCompletableFuture().join());
+                    }
+                    return result;
+                });
+    }
+}
@@ -33,6 +33,7 @@ import jakarta.ws.rs.core.Response;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.TreeMap;
 
 /**
  *
@@ -47,6 +48,9 @@ public class HowRU {
     @Inject
     EssConfiguration essConfiguration;
 
+    @Inject
+    MetaProxyGuard metaProxyGuard;
+
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response howru() {
@@ -55,7 +59,11 @@ public class HowRU {
         String openFormatUrl = essConfiguration.getOpenFormatUrl();
         String openFormatHowruUrl = getOpenFormatHowruUrl(openFormatUrl).toString();
         if (metaProxyUrlOk(metaProxyUrl) && openFormatUrlOk(openFormatHowruUrl)) {
-            return Response.ok(new HowRuResponse(null)).build();
+            // A failing external base is reported, but doesn't make the service unhealthy
+            HowRuResponse response = new HowRuResponse(null);
+            response.breakers = new TreeMap<>();
+            metaProxyGuard.getStates().forEach((base, state) -> response.breakers.put(base, state.name()));
+            return Response.ok(response).build();
         }
         return Response.serverError().build();
     }
@@ -89,7 +97,7 @@ public class HowRU {
     private boolean openFormatUrlOk(String url) {
         try {
             URI uri = new URI(url);
-            Response r = essConfiguration.getClient().target(uri).request().get();
+            Response r = essConfiguration.getOpenFormatClient().target(uri).request().get();
             if (r.getStatus() == 200) {
                 return true;
             }
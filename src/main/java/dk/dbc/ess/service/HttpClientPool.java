@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.io.LeaseRequest;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.glassfish.jersey.apache5.connector.Apache5ClientProperties;
+import org.glassfish.jersey.apache5.connector.Apache5ConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.message.GZipEncoder;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+
+/**
+ * A JAX-RS client for one backend, on its own pool of persistent connections
+ * <p>
+ * Each backend gets its own pool, so a backend that holds on to its
+ * connections can't starve the other. The time spent waiting for a
+ * connection from the pool is reported to the wait listener, in
+ * milliseconds.
+ */
+public final class HttpClientPool implements AutoCloseable {
+
+    private final WaitTimingConnectionManager connectionManager;
+    private final Client client;
+    private volatile LongConsumer waitListener = w -> {
+    };
+
+    /**
+     * @param maxConnections         connections in the pool
+     * @param maxConnectionsPerRoute connections in the pool per host
+     * @param connectTimeout         time allowed for establishing a connection
+     * @param readTimeout            time allowed for a response
+     * @param poolTimeout            time allowed for waiting for a connection
+     *                               from the pool
+     * @param timeToLive             time a connection may be reused for
+     * @param keepAlive              time an idle connection is kept
+     * @param asyncThreads           threads for asynchronous (rx) calls, the
+     *                               connector is blocking, so each call holds
+     *                               one until it completes
+     * @param userAgent              User-Agent header of requests
+     * @param gzip                   accept gzip compressed responses
+     * @param gzipRequests           gzip compress request bodies too
+     */
+    public HttpClientPool(int maxConnections, int maxConnectionsPerRoute, Duration connectTimeout, Duration readTimeout,
+                          Duration poolTimeout, Duration timeToLive, Duration keepAlive, int asyncThreads, String userAgent,
+                          boolean gzip, boolean gzipRequests) {
+        this.connectionManager = new WaitTimingConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeout.toMillis()))
+                .setTimeToLive(TimeValue.ofMilliseconds(timeToLive.toMillis()))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(1))
+                .build());
+        TimeValue keepAliveTime = TimeValue.ofMilliseconds(keepAlive.toMillis());
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> keepAliveTime;
+        ClientRequestFilter userAgentFilter = request -> request.getHeaders().putSingle(HttpHeaders.USER_AGENT, userAgent);
+        ClientConfig config = new ClientConfig()
+                .connectorProvider(new Apache5ConnectorProvider())
+                .property(Apache5ClientProperties.CONNECTION_MANAGER, connectionManager)
+                .property(Apache5ClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolTimeout.toMillis()))
+                        .build())
+                .property(Apache5ClientProperties.KEEPALIVE_STRATEGY, keepAliveStrategy)
+                .property(Apache5ClientProperties.DISABLE_COOKIES, true)
+                .property(ClientProperties.CONNECT_TIMEOUT, (int) connectTimeout.toMillis())
+                .property(ClientProperties.READ_TIMEOUT, (int) readTimeout.toMillis())
+                .property(ClientProperties.ASYNC_THREADPOOL_SIZE, asyncThreads);
+        if (gzip) {
+            config.register(EncodingFilter.class)
+                    .register(GZipEncoder.class);
+            if (gzipRequests) {
+                config.property(ClientProperties.USE_ENCODING, "gzip");
+            }
+        }
+        this.client = ClientBuilder.newBuilder()
+                .withConfig(config)
+                .register(userAgentFilter)
+                .build();
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * @param waitListener is told how many milliseconds each call waited for
+     *                     a connection
+     */
+    public void setWaitListener(LongConsumer waitListener) {
+        this.waitListener = waitListener;
+    }
+
+    /**
+     * @return connections handed out
+     */
+    public int getLeased() {
+        return stats().getLeased();
+    }
+
+    /**
+     * @return idle connections in the pool
+     */
+    public int getAvailable() {
+        return stats().getAvailable();
+    }
+
+    /**
+     * @return calls waiting for a connection
+     */
+    public int getPending() {
+        return stats().getPending();
+    }
+
+    /**
+     * @return connections in use, as percent of the pool size
+     */
+    public double getUtilization() {
+        PoolStats stats = stats();
+        return stats.getMax() == 0 ? 0.0 : 100.0 * stats.getLeased() / stats.getMax();
+    }
+
+    private PoolStats stats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+        connectionManager.close();
+    }
+
+    /**
+     * Connection manager that times how long a lease waits for a connection
+     */
+    private class WaitTimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        @Override
+        public LeaseRequest lease(String id, HttpRoute route, Timeout requestTimeout, Object state) {
+            long requested = System.nanoTime();
+            LeaseRequest lease = super.lease(id, route, requestTimeout, state);
+            return new LeaseRequest() {
+                @Override
+                public ConnectionEndpoint get(Timeout timeout) throws InterruptedException, ExecutionException, TimeoutException {
+                    try {
+                        return lease.get(timeout);
+                    } finally {
+                        waitListener.accept(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested));
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return lease.cancel();
+                }
+            };
+        }
+    }
+}
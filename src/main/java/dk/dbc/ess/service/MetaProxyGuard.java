@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Per base bulkheads and circuit breakers for calls to MetaProxy
+ * <p>
+ * Each base has a cap on its concurrent calls, so a slow base can't take
+ * all connections and threads from the others. And each base has a circuit
+ * breaker, so calls to a base that keeps failing, or is slower than the
+ * slow call threshold, fail fast until a probe succeeds. Calls that are
+ * turned away fail with a {@link RejectedExecutionException}.
+ */
+@ApplicationScoped
+public class MetaProxyGuard {
+    private static final Logger log = LoggerFactory.getLogger(MetaProxyGuard.class);
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        configuration.getBases().forEach(this::guard);
+        HttpClientPool pool = configuration.getMetaProxyPool();
+        pool.setWaitListener(metricRegistry.histogram("metaproxy_pool_wait_ms")::update);
+        metricRegistry.gauge("metaproxy_pool_leased", pool::getLeased);
+        metricRegistry.gauge("metaproxy_pool_available", pool::getAvailable);
+        metricRegistry.gauge("metaproxy_pool_pending", pool::getPending);
+        metricRegistry.gauge("metaproxy_pool_utilization", pool::getUtilization);
+    }
+
+    /**
+     * Make a call to MetaProxy for a base, if the base's guard allows it
+     *
+     * @param base   the base called
+     * @param call   starts the call, its stage should complete when the
+     *               response has been read, so the call is guarded and timed
+     *               until then
+     * @param failed tells if a result is a failure
+     * @param <T>    result type
+     * @return stage with the result of the call
+     */
+    public <T> CompletionStage<T> call(String base, Supplier<CompletionStage<T>> call, Predicate<T> failed) {
+        Guard guard = guard(base);
+        if (!guard.bulkhead.tryAcquire()) {
+            guard.rejected.inc();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many concurrent calls to base: " + base));
+        }
+        long permit = guard.breaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            guard.bulkhead.release();
+            guard.rejected.inc();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Circuit open for base: " + base));
+        }
+        long started = System.nanoTime();
+        CompletionStage<T> stage;
+        try {
+            stage = call.get();
+        } catch (RuntimeException ex) {
+            stage = CompletableFuture.failedFuture(ex);
+        }
+        return stage.whenComplete((result, ex) -> {
+            guard.bulkhead.release();
+            boolean slow = System.nanoTime() - started > configuration.getBreakerSlowCall().toNanos();
+            CircuitBreaker.State before = guard.breaker.getState();
+            guard.breaker.record(permit, ex != null || slow || failed.test(result));
+            CircuitBreaker.State after = guard.breaker.getState();
+            if (before != after) {
+                log.warn("Circuit breaker for base {} changed from {} to {}", base, before, after);
+            }
+        });
+    }
+
+    /**
+     * @return the circuit breaker state of each base
+     */
+    public Map<String, CircuitBreaker.State> getStates() {
+        Map<String, CircuitBreaker.State> states = new TreeMap<>();
+        guards.forEach((base, guard) -> states.put(base, guard.breaker.getState()));
+        return states;
+    }
+
+    private Guard guard(String base) {
+        return guards.computeIfAbsent(base, b -> {
+            int maxConcurrent = configuration.getMetaProxyMaxConcurrent(b);
+            Guard guard = new Guard(new Semaphore(maxConcurrent),
+                                    new CircuitBreaker(configuration.getBreakerWindow(), configuration.getBreakerFailureRate(),
+                                                       configuration.getBreakerOpenTime()),
+                                    metricRegistry.counter("metaproxy_rejected", new Tag("base", b)));
+            metricRegistry.gauge("metaproxy_in_flight", () -> maxConcurrent - guard.bulkhead.availablePermits(), new Tag("base", b));
+            metricRegistry.gauge("metaproxy_breaker_state", () -> guard.breaker.getState().ordinal(), new Tag("base", b));
+            return guard;
+        });
+    }
+
+    private static class Guard {
+        private final Semaphore bulkhead;
+        private final CircuitBreaker breaker;
+        private final Counter rejected;
+
+        private Guard(Semaphore bulkhead, CircuitBreaker breaker, Counter rejected) {
+            this.bulkhead = bulkhead;
+            this.breaker = breaker;
+            this.rejected = rejected;
+        }
+    }
+}
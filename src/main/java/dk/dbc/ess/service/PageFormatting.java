@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.sru.SruRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Formatting of the records of a page, as they become available
+ * <p>
+ * Records are collected into batches of the configured size, and each batch
+ * is sent to formatting when it is full. That way formatting of the first
+ * records starts while the rest of the page is still being read from
+ * MetaProxy.
+ * <p>
+ * Records are added by one thread at a time, and {@link #finish()} or
+ * {@link #batches()} is called after the last record has been added.
+ */
+class PageFormatting {
+    private static final Logger log = LoggerFactory.getLogger(PageFormatting.class);
+
+    private final Formatting formatting;
+    private final int batchSize;
+    private final String outputFormat;
+    private final String idPrefix;
+    private final String trackingId;
+    private final boolean prefetch;
+    private final Deadline deadline;
+    private final List<CompletionStage<List<Object>>> stages = new ArrayList<>();
+    private final List<CompletionStage<Object>> records = new ArrayList<>();
+    private List<Formatting.Source> batch;
+    private boolean streamed;
+
+    /**
+     * @param deadline when records not yet formatted are replaced by error
+     *                 documents
+     */
+    PageFormatting(Formatting formatting, int batchSize, String outputFormat, String idPrefix, String trackingId, Deadline deadline) {
+        this(formatting, batchSize, outputFormat, idPrefix, trackingId, false, deadline);
+    }
+
+    /**
+     * @param prefetch whether the page is formatted ahead of being requested
+     */
+    PageFormatting(Formatting formatting, int batchSize, String outputFormat, String idPrefix, String trackingId, boolean prefetch) {
+        this(formatting, batchSize, outputFormat, idPrefix, trackingId, prefetch, Deadline.NONE);
+    }
+
+    private PageFormatting(Formatting formatting, int batchSize, String outputFormat, String idPrefix, String trackingId,
+                           boolean prefetch, Deadline deadline) {
+        this.formatting = formatting;
+        this.batchSize = batchSize;
+        this.outputFormat = outputFormat;
+        this.idPrefix = idPrefix;
+        this.trackingId = trackingId;
+        this.prefetch = prefetch;
+        this.deadline = deadline;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Receiver of records as they are read from MetaProxy
+     *
+     * @return record consumer
+     */
+    Consumer<SruRecord> streaming() {
+        return record -> {
+            streamed = true;
+            add(record);
+        };
+    }
+
+    /**
+     * Add the records of a page, unless they have already been streamed
+     *
+     * @param records all records of the page
+     */
+    void addAll(List<SruRecord> records) {
+        if (!streamed) {
+            records.forEach(this::add);
+        }
+    }
+
+    /**
+     * @return when records not yet formatted are replaced by error documents
+     */
+    Deadline deadline() {
+        return deadline;
+    }
+
+    /**
+     * Formatting of a part of this page, for when the page is fetched in
+     * parts
+     *
+     * @return new page formatting with the same settings
+     */
+    PageFormatting part() {
+        return new PageFormatting(formatting, batchSize, outputFormat, idPrefix, trackingId, prefetch, deadline);
+    }
+
+    /**
+     * Take over the formatting of the parts of this page
+     * <p>
+     * All records of the parts must have been added.
+     *
+     * @param parts parts made by {@link #part()} in page order
+     */
+    void join(List<PageFormatting> parts) {
+        streamed = true;
+        flush();
+        for (PageFormatting part : parts) {
+            stages.addAll(part.batches());
+            records.addAll(part.records());
+        }
+    }
+
+    private void add(SruRecord record) {
+        if (!record.isUsable()) {
+            log.error("{} for: {}", record.getProblem(), trackingId);
+            flush();
+            CompletionStage<List<Object>> error = formatting.formattingError(Formatting.INTERNAL_ERROR);
+            stages.add(error);
+            records.add(error.thenApply(list -> list.get(0)));
+            return;
+        }
+        Formatting.Source source;
+        if (record.getId() != null) {
+            source = new Formatting.Source(record.getXml(), idPrefix + record.getId(), true);
+        } else {
+            source = new Formatting.Source(record.getXml(), idPrefix + UUID.randomUUID().toString(), false);
+        }
+        batch.add(source);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (!batch.isEmpty()) {
+            CompletionStage<List<Object>> stage = prefetch ?
+                                                  formatting.prefetchCall(batch, outputFormat, trackingId) :
+                                                  formatting.formattingCall(batch, outputFormat, trackingId, deadline);
+            if (deadline.isBounded()) {
+                // Records shared with other requests are formatted by their deadline
+                int size = batch.size();
+                stage = deadline.bound(stage)
+                        .handle((records, ex) -> ex == null ?
+                                                 CompletableFuture.completedFuture(records) :
+                                                 Futures.unwrap(ex) instanceof TimeoutException ?
+                                                 formatting.formattingError(Formatting.TIMEOUT, size) :
+                                                 CompletableFuture.<List<Object>>failedFuture(ex))
+                        .thenCompose(records -> records);
+            }
+            stages.add(stage);
+            for (int i = 0; i < batch.size(); i++) {
+                int index = i;
+                records.add(stage.thenApply(list -> list.get(index)));
+            }
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /**
+     * Send the last batch to formatting
+     *
+     * @return stage with the formatted records in page order
+     */
+    CompletableFuture<List<Object>> finish() {
+        return Futures.concat(batches());
+    }
+
+    /**
+     * Send the last batch to formatting
+     *
+     * @return stages with the formatted records of each batch in page order
+     */
+    List<CompletionStage<List<Object>>> batches() {
+        flush();
+        return stages;
+    }
+
+    /**
+     * Send the last batch to formatting
+     *
+     * @return stages with each formatted record in page order
+     */
+    List<CompletionStage<Object>> records() {
+        flush();
+        return records;
+    }
+}
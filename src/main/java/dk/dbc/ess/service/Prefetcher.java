@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.cache.SruCache;
+import dk.dbc.ess.service.sru.SruPage;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Speculative fetching and formatting of the page a client is expected to
+ * ask for next
+ * <p>
+ * The page is parked in the SRU cache, and its records in the formatted
+ * record cache, for the prefetch time to live. Prefetching is low priority:
+ * it is skipped when formatting tasks are queued, and the number of pages
+ * being prefetched at any time is capped by a global budget.
+ */
+@ApplicationScoped
+public class Prefetcher {
+    private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    SruCache sruCache;
+
+    @Inject
+    Formatting formatting;
+
+    @Inject
+    FormattingExecutor formattingExecutor;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private Semaphore budget;
+    private Counter started;
+    private Counter skipped;
+    private Counter failed;
+
+    @PostConstruct
+    public void init() {
+        int maxInFlight = configuration.getPrefetchMaxInFlight();
+        budget = new Semaphore(maxInFlight);
+        started = metricRegistry.counter("prefetch_started");
+        skipped = metricRegistry.counter("prefetch_skipped");
+        failed = metricRegistry.counter("prefetch_failed");
+        metricRegistry.gauge("prefetch_in_flight", () -> maxInFlight - budget.availablePermits());
+    }
+
+    /**
+     * Fetch and format a page in the background, if there's room for it
+     *
+     * @param key          the page
+     * @param loader       fetches the page from MetaProxy
+     * @param outputFormat OpenFormat format name
+     * @param idPrefix     prefix for remote ids
+     */
+    public void prefetch(SruCache.Key key, SruCache.Loader loader,
+                         String outputFormat, String idPrefix) {
+        if (formattingExecutor.getQueued() > 0 || !budget.tryAcquire()) {
+            skipped.inc();
+            return;
+        }
+        String trackingId = "prefetch-" + UUID.randomUUID().toString();
+        PageFormatting pageFormatting = new PageFormatting(formatting, configuration.getOpenFormatBatchSize(),
+                                                           outputFormat, idPrefix, trackingId, true);
+        CompletionStage<SruPage> page;
+        try {
+            page = sruCache.prefetch(key, loader, pageFormatting.streaming());
+        } catch (RuntimeException ex) {
+            page = CompletableFuture.failedFuture(ex);
+        }
+        if (page == null) {
+            budget.release();
+            return;
+        }
+        started.inc();
+        log.debug("Prefetching {} - {}", key, trackingId);
+        page.thenCompose(p -> {
+            if (p.hasDiagnostics()) {
+                return CompletableFuture.completedFuture(List.of());
+            }
+            pageFormatting.addAll(p.getRecords());
+            return pageFormatting.finish();
+        }).whenComplete((records, ex) -> {
+            budget.release();
+            if (ex != null) {
+                failed.inc();
+                log.debug("Prefetching {} failed: {}", key, Futures.unwrap(ex).getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalescing of identical concurrent operations
+ * <p>
+ * The first caller for a key becomes the leader and performs the operation.
+ * Callers arriving with the same key while it is in flight share its result
+ * instead of performing it again. Once the operation completes, the next
+ * caller starts a new one.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onCoalesced;
+
+    /**
+     * @param onCoalesced called whenever a caller shares an operation in flight
+     */
+    public SingleFlight(Runnable onCoalesced) {
+        this.onCoalesced = onCoalesced;
+    }
+
+    /**
+     * Perform an operation, or share the one in flight for the same key
+     *
+     * @param key       what the operation produces
+     * @param operation the operation
+     * @return stage with the result
+     */
+    public CompletionStage<V> run(K key, Supplier<? extends CompletionStage<V>> operation) {
+        Flight flight = begin(key);
+        if (flight.isLeader()) {
+            CompletionStage<V> stage;
+            try {
+                stage = operation.get();
+            } catch (RuntimeException ex) {
+                stage = CompletableFuture.failedFuture(ex);
+            }
+            stage.whenComplete((value, ex) -> {
+                if (ex == null) {
+                    flight.complete(value);
+                } else {
+                    flight.fail(ex);
+                }
+            });
+        }
+        return flight.stage();
+    }
+
+    /**
+     * Join or start a flight
+     * <p>
+     * If the caller becomes the leader it must complete the flight, or other
+     * callers will wait forever.
+     *
+     * @param key what the operation produces
+     * @return the flight
+     */
+    public Flight begin(K key) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            onCoalesced.run();
+            return new Flight(key, existing, false);
+        }
+        return new Flight(key, future, true);
+    }
+
+    /**
+     * @return number of operations in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    public final class Flight {
+        private final K key;
+        private final CompletableFuture<V> future;
+        private final boolean leader;
+
+        private Flight(K key, CompletableFuture<V> future, boolean leader) {
+            this.key = key;
+            this.future = future;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return stage completing with the result of the operation
+         */
+        public CompletionStage<V> stage() {
+            return future.copy();
+        }
+
+        public void complete(V value) {
+            inFlight.remove(key, future);
+            future.complete(value);
+        }
+
+        public void fail(Throwable ex) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(Futures.unwrap(ex));
+        }
+    }
+}
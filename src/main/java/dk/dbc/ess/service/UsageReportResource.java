@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.UsageReportResponse;
+import dk.dbc.ess.service.usage.UsageReports;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Stateless;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Read-only usage reports
+ * <p>
+ * Usage per base, client and agency between two days (UTC), from the daily
+ * and monthly usage tables. Pages are ordered by base, client and agency,
+ * and the next page is requested with the cursor of the previous one.
+ */
+@Path("usage")
+@Stateless
+public class UsageReportResource {
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10000;
+
+    private static final String SEPARATOR = "\u0000";
+
+    @EJB
+    UsageReports usageReports;
+
+    /**
+     * @param from  first day, like 2024-01-01
+     * @param to    day after the last day
+     * @param base  only usage of this base
+     * @param after cursor from the previous page
+     * @param limit maximum number of rows in the page
+     * @return page of usage
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response report(@QueryParam("from") String from,
+                           @QueryParam("to") String to,
+                           @QueryParam("base") String base,
+                           @QueryParam("after") String after,
+                           @QueryParam("limit") Integer limit) {
+        final LocalDate fromDay;
+        final LocalDate toDay;
+        try {
+            fromDay = LocalDate.parse(from);
+            toDay = LocalDate.parse(to);
+        } catch (NullPointerException | DateTimeParseException ex) {
+            return badRequest("from and to must be days, like 2024-01-31");
+        }
+        if (!fromDay.isBefore(toDay)) {
+            return badRequest("from must be before to");
+        }
+        final int size = limit == null ? DEFAULT_LIMIT : limit;
+        if (size < 1 || size > MAX_LIMIT) {
+            return badRequest("limit must be between 1 and " + MAX_LIMIT);
+        }
+        final UsageReports.Row cursor;
+        try {
+            cursor = after == null || after.isEmpty() ? null : parseCursor(after);
+        } catch (IllegalArgumentException ex) {
+            return badRequest("Invalid cursor");
+        }
+        final List<UsageReports.Row> rows = usageReports.report(fromDay, toDay, base, cursor, size + 1);
+        final boolean more = rows.size() > size;
+        final List<UsageReportResponse.Row> page = new ArrayList<>(Math.min(rows.size(), size));
+        for (UsageReports.Row row : more ? rows.subList(0, size) : rows) {
+            page.add(new UsageReportResponse.Row(row.databaseId, emptyToNull(row.clientId), emptyToNull(row.agencyId),
+                                                 row.requests, row.records));
+        }
+        final String next = more ? cursor(rows.get(size - 1)) : null;
+        return Response.ok(new UsageReportResponse(fromDay.toString(), toDay.toString(), page, next)).build();
+    }
+
+    private static Response badRequest(String message) {
+        return Response.status(Response.Status.BAD_REQUEST).entity(message).build();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @param row last row of a page
+     * @return opaque cursor for the page after it
+     */
+    static String cursor(UsageReports.Row row) {
+        final String key = row.databaseId + SEPARATOR + row.clientId + SEPARATOR + row.agencyId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(UTF_8));
+    }
+
+    /**
+     * @param cursor cursor from {@link #cursor(UsageReports.Row)}
+     * @return key of the row the cursor was made from
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    static UsageReports.Row parseCursor(String cursor) {
+        final String[] key = new String(Base64.getUrlDecoder().decode(cursor), UTF_8).split(SEPARATOR, -1);
+        if (key.length != 3) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new UsageReports.Row(key[0], key[1], key[2], 0, 0);
+    }
+}
@@ -21,30 +21,140 @@ package dk.dbc.ess.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Shared XML parsers, serializers and StAX factories
+ * <p>
+ * Factories are looked up and configured once: namespace aware, with
+ * secure processing and without external entities or DTD loading. A
+ * DOCTYPE is accepted, as OpenFormat may produce one, but nothing it points
+ * to is fetched.
+ * <p>
+ * Document builders and transformers are not thread safe, so they are
+ * borrowed from a bounded pool and handed back with {@code release}, which
+ * resets them. Borrowing from an empty pool creates a new one, and one
+ * released to a full pool is dropped. Unlike thread locals, the pools don't
+ * leave instances on the container's threads, that would keep the
+ * application's classes loaded after it is undeployed. The number of times
+ * one was reused or had to be created, are counted for metrics.
+ * <p>
+ * StAX factories are thread safe once configured, and are shared.
  *
  * @author Noah Torp-Smith (nots@dbc.dk)
  */
 public class XmlTools {
     private static final Logger log = LoggerFactory.getLogger(XmlTools.class);
     private static final DocumentBuilderFactory DBF = newDocumentBuilderFactory();
+    private static final TransformerFactory TF = newTransformerFactory();
+    private static final XMLInputFactory INPUT_FACTORY = newInputFactory(false);
+    private static final XMLInputFactory COALESCING_INPUT_FACTORY = newInputFactory(true);
+    private static final XMLOutputFactory OUTPUT_FACTORY = newOutputFactory();
+
+    private static final int POOL_SIZE = 64;
+    private static final BlockingQueue<DocumentBuilder> DOCUMENT_BUILDERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Transformer> TRANSFORMERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final LongAdder DOCUMENT_BUILDER_REUSED = new LongAdder();
+    private static final LongAdder DOCUMENT_BUILDER_CREATED = new LongAdder();
+    private static final LongAdder TRANSFORMER_REUSED = new LongAdder();
+    private static final LongAdder TRANSFORMER_CREATED = new LongAdder();
 
     private static DocumentBuilderFactory newDocumentBuilderFactory() {
         synchronized (DocumentBuilderFactory.class) {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             factory.setNamespaceAware(true);
+            factory.setExpandEntityReferences(false);
+            factory.setXIncludeAware(false);
+            try {
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", false);
+                factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+                factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+                factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            } catch (ParserConfigurationException ex) {
+                log.warn("Cannot configure secure processing of documents: {}", ex.getMessage());
+            }
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
             return factory;
         }
     }
 
+    private static TransformerFactory newTransformerFactory() {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (TransformerConfigurationException ex) {
+            log.warn("Cannot configure secure processing of transformations: {}", ex.getMessage());
+        }
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+        return factory;
+    }
+
+    private static XMLInputFactory newInputFactory(boolean coalescing) {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, coalescing);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static XMLOutputFactory newOutputFactory() {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        return factory;
+    }
+
+    /**
+     * Borrow a document builder, to be handed back with
+     * {@link #release(DocumentBuilder)}
+     * <p>
+     * Documents made by the builder stay usable after it is released.
+     *
+     * @return document builder no one else is using
+     */
+    public static DocumentBuilder borrowDocumentBuilder() {
+        DocumentBuilder builder = DOCUMENT_BUILDERS.poll();
+        if (builder == null) {
+            builder = newDocumentBuilder();
+            DOCUMENT_BUILDER_CREATED.increment();
+        } else {
+            DOCUMENT_BUILDER_REUSED.increment();
+        }
+        return builder;
+    }
+
+    /**
+     * Hand back a borrowed document builder
+     *
+     * @param builder document builder, the caller must not use it afterwards
+     */
+    public static void release(DocumentBuilder builder) {
+        builder.reset();
+        DOCUMENT_BUILDERS.offer(builder);
+    }
+
+    /**
+     * A document builder of its own, for callers that keep it
+     *
+     * @return new document builder
+     */
     public static DocumentBuilder newDocumentBuilder() {
         try {
             synchronized (DBF) {
-                log.info("Creating new documentbuilder");
                 return DBF.newDocumentBuilder();
             }
         } catch (ParserConfigurationException ex) {
@@ -52,4 +162,65 @@ public class XmlTools {
         }
     }
 
+    /**
+     * Borrow an identity transformer, to be handed back with
+     * {@link #release(Transformer)}
+     * <p>
+     * The output properties are the defaults.
+     *
+     * @return transformer no one else is using
+     */
+    public static Transformer borrowTransformer() {
+        Transformer transformer = TRANSFORMERS.poll();
+        if (transformer == null) {
+            try {
+                synchronized (TF) {
+                    transformer = TF.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new RuntimeException(ex);
+            }
+            TRANSFORMER_CREATED.increment();
+        } else {
+            TRANSFORMER_REUSED.increment();
+        }
+        return transformer;
+    }
+
+    /**
+     * Hand back a borrowed transformer
+     *
+     * @param transformer transformer, the caller must not use it afterwards
+     */
+    public static void release(Transformer transformer) {
+        transformer.reset();
+        TRANSFORMERS.offer(transformer);
+    }
+
+    /**
+     * @return namespace aware StAX input factory
+     */
+    public static XMLInputFactory inputFactory() {
+        return INPUT_FACTORY;
+    }
+
+    /**
+     * @return namespace aware StAX input factory, that reports adjacent
+     * text and CDATA as one event
+     */
+    public static XMLInputFactory coalescingInputFactory() {
+        return COALESCING_INPUT_FACTORY;
+    }
+
+    /**
+     * @return namespace repairing StAX output factory
+     */
+    public static XMLOutputFactory outputFactory() {
+        return OUTPUT_FACTORY;
+    }
+
+    public static long getDocumentBuilderReused() { return DOCUMENT_BUILDER_REUSED.sum(); }
+    public static long getDocumentBuilderCreated() { return DOCUMENT_BUILDER_CREATED.sum(); }
+    public static long getTransformerReused() { return TRANSFORMER_REUSED.sum(); }
+    public static long getTransformerCreated() { return TRANSFORMER_CREATED.sum(); }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.cache;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least recently used cache, bounded by total weight, where entries expire
+ * <p>
+ * An entry is fresh until its time to live has passed, then stale for a
+ * while and finally removed. Stale entries are still returned, so callers
+ * can serve them while fetching a new value.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final Runnable onEviction;
+    private final LongSupplier clock;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long weight;
+
+    /**
+     * Create a cache
+     *
+     * @param maxWeight  the maximum total weight of the values
+     * @param weigher    how much a value weighs
+     * @param onEviction called whenever an entry is evicted or expires
+     */
+    public ExpiringCache(long maxWeight, ToLongFunction<? super V> weigher, Runnable onEviction) {
+        this(maxWeight, weigher, onEviction, System::nanoTime);
+    }
+
+    ExpiringCache(long maxWeight, ToLongFunction<? super V> weigher, Runnable onEviction, LongSupplier clock) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.onEviction = onEviction;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.weight = 0;
+    }
+
+    /**
+     * Look up a value
+     *
+     * @param key the key
+     * @return the value (fresh or stale) or null if not present
+     */
+    public synchronized Hit<V> get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (now - entry.staleUntil >= 0) {
+            entries.remove(key);
+            weight -= entry.weight;
+            onEviction.run();
+            return null;
+        }
+        return new Hit<>(entry.value, now - entry.freshUntil < 0);
+    }
+
+    /**
+     * Store a value
+     *
+     * @param key        the key
+     * @param value      the value
+     * @param timeToLive how long the value is fresh
+     * @param staleFor   how long after that it can be served stale
+     */
+    public synchronized void put(K key, V value, Duration timeToLive, Duration staleFor) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (timeToLive.isNegative() || timeToLive.isZero() || valueWeight > maxWeight) {
+            return;
+        }
+        long now = clock.getAsLong();
+        long freshUntil = now + timeToLive.toNanos();
+        Entry<V> old = entries.put(key, new Entry<>(value, valueWeight, freshUntil, freshUntil + staleFor.toNanos()));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += valueWeight;
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Entry<V> eldest = iterator.next().getValue();
+            iterator.remove();
+            weight -= eldest.weight;
+            onEviction.run();
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * A cached value, and whether it is still fresh
+     *
+     * @param <V> value type
+     */
+    public static final class Hit<V> {
+        private final V value;
+        private final boolean fresh;
+
+        private Hit(V value, boolean fresh) {
+            this.value = value;
+            this.fresh = fresh;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public boolean isFresh() {
+            return fresh;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long freshUntil;
+        private final long staleUntil;
+
+        private Entry(V value, long weight, long freshUntil, long staleUntil) {
+            this.value = value;
+            this.weight = weight;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+    }
+}
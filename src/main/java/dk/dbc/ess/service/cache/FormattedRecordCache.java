@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.cache;
+
+import dk.dbc.ess.service.EssConfiguration;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Objects;
+
+/**
+ * Cache of records formatted by OpenFormat
+ * <p>
+ * Records are identified by their remote id, or by a hash of their content
+ * when the remote database does not supply an id. The cache is bounded by
+ * the (approximate) memory used by the formatted records.
+ */
+@ApplicationScoped
+public class FormattedRecordCache {
+
+    private static final long ENTRY_OVERHEAD = 64;
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private ExpiringCache<Key, String> cache;
+    private Duration ttl;
+    private Duration prefetchTtl;
+    private boolean active;
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() {
+        ttl = configuration.getFormatCacheTtl();
+        prefetchTtl = configuration.isPrefetchEnabled() ? configuration.getPrefetchTtl() : Duration.ZERO;
+        active = isEnabled() || !prefetchTtl.isZero();
+        hits = metricRegistry.counter("format_cache_hits");
+        misses = metricRegistry.counter("format_cache_misses");
+        evictions = metricRegistry.counter("format_cache_evictions");
+        cache = new ExpiringCache<>(configuration.getFormatCacheSizeMb() * 1024L * 1024L,
+                                    formatted -> ENTRY_OVERHEAD + 2L * formatted.length(),
+                                    evictions::inc);
+        metricRegistry.gauge("format_cache_size", cache::size);
+        metricRegistry.gauge("format_cache_bytes", cache::weight);
+    }
+
+    public boolean isEnabled() {
+        return !ttl.isZero() && !ttl.isNegative();
+    }
+
+    /**
+     * Look up a formatted record
+     *
+     * @param recordKey    record key, see {@link #recordKey(String, String)}
+     * @param outputFormat OpenFormat format name
+     * @return formatted record or null if not cached
+     */
+    public String get(String recordKey, String outputFormat) {
+        if (!active) {
+            return null;
+        }
+        ExpiringCache.Hit<String> hit = cache.get(new Key(recordKey, outputFormat));
+        if (hit == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return hit.getValue();
+    }
+
+    public void put(String recordKey, String outputFormat, String formatted) {
+        if (isEnabled()) {
+            cache.put(new Key(recordKey, outputFormat), formatted, ttl, Duration.ZERO);
+        }
+    }
+
+    /**
+     * Store a record formatted ahead of being requested
+     * <p>
+     * It is kept for the prefetch time to live, even if caching is disabled.
+     */
+    public void putPrefetched(String recordKey, String outputFormat, String formatted) {
+        Duration keep = ttl.compareTo(prefetchTtl) > 0 ? ttl : prefetchTtl;
+        cache.put(new Key(recordKey, outputFormat), formatted, keep, Duration.ZERO);
+    }
+
+    /**
+     * Make a key identifying a record
+     *
+     * @param remoteId remote id of the record or null if it has none
+     * @param content  the record, used if there's no id
+     * @return key
+     */
+    public static String recordKey(String remoteId, String content) {
+        if (remoteId != null) {
+            return remoteId;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return "#" + HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final class Key {
+        private final String recordKey;
+        private final String outputFormat;
+
+        private Key(String recordKey, String outputFormat) {
+            this.recordKey = recordKey;
+            this.outputFormat = outputFormat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return recordKey.equals(key.recordKey) &&
+                   outputFormat.equals(key.outputFormat);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(recordKey, outputFormat);
+        }
+    }
+}
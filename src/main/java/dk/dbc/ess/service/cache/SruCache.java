@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.cache;
+
+import dk.dbc.ess.service.EssConfiguration;
+import dk.dbc.ess.service.Futures;
+import dk.dbc.ess.service.SingleFlight;
+import dk.dbc.ess.service.sru.SruPage;
+import dk.dbc.ess.service.sru.SruRecord;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Cache of search result pages from MetaProxy
+ * <p>
+ * Pages are kept for the time to live configured for their base. After
+ * that they are served stale for a while, while a fresh page is fetched in
+ * the background. If MetaProxy fails, the stale page is kept.
+ * <p>
+ * Pages with diagnostics are never cached.
+ * <p>
+ * Identical searches arriving while a page is being fetched share that
+ * fetch, whether caching is enabled or not. So the fetch shouldn't depend
+ * on the request starting it: its loader is given the tracking id to log
+ * under, and callers bound their own wait for the page.
+ * <p>
+ * Prefetched pages are cached for the prefetch time to live, even for bases
+ * without caching.
+ */
+@ApplicationScoped
+public class SruCache {
+    private static final Logger log = LoggerFactory.getLogger(SruCache.class);
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private ExpiringCache<Key, SruPage> cache;
+    private final ConcurrentHashMap<Key, Boolean> refreshing = new ConcurrentHashMap<>();
+    private SingleFlight<Key, SruPage> flights;
+    private Counter hits;
+    private Counter staleHits;
+    private Counter misses;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() {
+        hits = metricRegistry.counter("sru_cache_hits");
+        staleHits = metricRegistry.counter("sru_cache_stale_hits");
+        misses = metricRegistry.counter("sru_cache_misses");
+        evictions = metricRegistry.counter("sru_cache_evictions");
+        cache = new ExpiringCache<>(configuration.getSruCacheMaxEntries(), page -> 1, evictions::inc);
+        metricRegistry.gauge("sru_cache_size", cache::size);
+        flights = new SingleFlight<>(metricRegistry.counter("sru_coalesced")::inc);
+    }
+
+    /**
+     * Fetches a page from MetaProxy
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param onRecord   receiver of records as they are read
+         * @param trackingId tracking id to log the fetch under
+         * @return stage with the page
+         */
+        CompletionStage<SruPage> load(Consumer<SruRecord> onRecord, String trackingId);
+    }
+
+    /**
+     * Get a page from the cache, or load it
+     * <p>
+     * The records of a loaded page are passed to onRecord as they are read.
+     * Records of a page from the cache are not, nor are those of a page
+     * being refreshed in the background.
+     *
+     * @param key        what page to get
+     * @param loader     fetches the page from MetaProxy
+     * @param onRecord   receiver of records as they are read
+     * @param trackingId tracking id of the request
+     * @return stage with the page
+     */
+    public CompletionStage<SruPage> get(Key key, Loader loader, Consumer<SruRecord> onRecord, String trackingId) {
+        Duration ttl = configuration.getSruCacheTtl(key.base);
+        boolean enabled = !ttl.isZero() && !ttl.isNegative();
+        ExpiringCache.Hit<SruPage> hit = cache.get(key);
+        if (hit != null && hit.isFresh()) {
+            hits.inc();
+            return CompletableFuture.completedFuture(hit.getValue());
+        }
+        if (!enabled) { // Only prefetched pages are cached
+            return fetch(key, loader, onRecord, trackingId);
+        }
+        if (hit != null) {
+            staleHits.inc();
+            refresh(key, loader, ttl);
+            return CompletableFuture.completedFuture(hit.getValue());
+        }
+        misses.inc();
+        return load(key, loader, onRecord, trackingId, ttl);
+    }
+
+    /**
+     * Load a page ahead of it being requested
+     * <p>
+     * It is kept for the prefetch time to live, or the time to live of its
+     * base if that is longer.
+     *
+     * @param key      what page to get
+     * @param loader   fetches the page from MetaProxy
+     * @param onRecord receiver of records as they are read
+     * @return stage with the page or null if it is cached already
+     */
+    public CompletionStage<SruPage> prefetch(Key key, Loader loader, Consumer<SruRecord> onRecord) {
+        if (cache.get(key) != null) {
+            return null;
+        }
+        Duration ttl = configuration.getSruCacheTtl(key.base);
+        if (ttl.compareTo(configuration.getPrefetchTtl()) < 0) {
+            ttl = configuration.getPrefetchTtl();
+        }
+        return load(key, loader, onRecord, "prefetch", ttl);
+    }
+
+    private CompletionStage<SruPage> load(Key key, Loader loader, Consumer<SruRecord> onRecord, String trackingId, Duration ttl) {
+        return fetch(key, loader, onRecord, trackingId).thenApply(page -> {
+            if (!page.hasDiagnostics()) {
+                cache.put(key, page, ttl, configuration.getSruCacheStale());
+            }
+            return page;
+        });
+    }
+
+    /**
+     * Fetch a page from MetaProxy, or share the fetch of it in flight
+     * <p>
+     * Only the caller starting a fetch gets its records streamed.
+     */
+    private CompletionStage<SruPage> fetch(Key key, Loader loader, Consumer<SruRecord> onRecord, String trackingId) {
+        return flights.run(key, () -> loader.load(onRecord, trackingId));
+    }
+
+    private void refresh(Key key, Loader loader, Duration ttl) {
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) == null) {
+            log.debug("Refreshing stale page {}", key);
+            load(key, loader, record -> {
+            }, "refresh", ttl).whenComplete((page, ex) -> {
+                refreshing.remove(key);
+                if (ex != null) {
+                    log.warn("Refreshing stale page {} failed: {}", key, Futures.unwrap(ex).getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Key of a cached page
+     * <p>
+     * Whitespace in the query is normalized, so trivially different
+     * spellings of the same query share pages.
+     *
+     * @param base      MetaProxy base
+     * @param queryType query parameter name (query or x-pquery)
+     * @param query     the query
+     * @param start     first record
+     * @param rows      number of records
+     * @return page key
+     */
+    public static Key key(String base, String queryType, String query, int start, int rows) {
+        return new Key(base, queryType, query.trim().replaceAll("\\s+", " "), start, rows);
+    }
+
+    public static final class Key {
+        private final String base;
+        private final String queryType;
+        private final String query;
+        private final int start;
+        private final int rows;
+
+        private Key(String base, String queryType, String query, int start, int rows) {
+            this.base = base;
+            this.queryType = queryType;
+            this.query = query;
+            this.start = start;
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return start == key.start &&
+                   rows == key.rows &&
+                   base.equals(key.base) &&
+                   queryType.equals(key.queryType) &&
+                   query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(base, queryType, query, start, rows);
+        }
+
+        @Override
+        public String toString() {
+            return base + ":" + queryType + "=" + query + "[" + start + "+" + rows + "]";
+        }
+    }
+}
@@ -46,4 +46,11 @@ public class EssResponse {
     @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
     @XmlElement(name = "trackingId", required = true, namespace = NS)
     public String trackingId;
+
+    /**
+     * The outcome of each base, only present in federated searches
+     */
+    @XmlElementWrapper(name = "bases", namespace = NS)
+    @XmlElement(name = "base", namespace = NS)
+    public List<BaseResult> bases;
 }
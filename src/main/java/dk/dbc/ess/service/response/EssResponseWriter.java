@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import dk.dbc.ess.service.EssConfiguration;
+import dk.dbc.ess.service.XmlTools;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+import org.apache.commons.text.StringEscapeUtils;
+import org.w3c.dom.Element;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writer of {@link EssResponse} in pass-through mode
+ * <p>
+ * Formatted records ({@link RecordFragment}) are copied into the response
+ * as text. Other records (error documents) are serialized from their DOM.
+ * The response elements use a prefix for the ESS namespace, so records in
+ * no namespace can be copied without namespace fixups.
+ * <p>
+ * When pass-through mode is off, responses are marshalled by JAXB.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+public class EssResponseWriter implements MessageBodyWriter<EssResponse> {
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return EssResponse.class.isAssignableFrom(type) &&
+               configuration != null && configuration.isFormatPassThrough();
+    }
+
+    @Override
+    public void writeTo(EssResponse response, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(entityStream, StandardCharsets.UTF_8));
+        writeStart(writer, response.hits);
+        if (response.records != null) {
+            Transformer transformer = null;
+            try {
+                for (Object record : response.records) {
+                    if (transformer == null && !(record instanceof RecordFragment)) {
+                        transformer = newTransformer();
+                    }
+                    writeRecord(writer, record, transformer);
+                }
+            } finally {
+                release(transformer);
+            }
+        }
+        writeEnd(writer, response.trackingId, response.bases);
+        writer.flush();
+    }
+
+    static void writeStart(Writer writer, long hits) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        writer.write("<ess:response xmlns:ess=\"" + EssResponse.NS + "\"><ess:hits>");
+        writer.write(Long.toString(hits));
+        writer.write("</ess:hits><ess:records>");
+    }
+
+    static void writeRecord(Writer writer, Object record, Transformer transformer) throws IOException {
+        if (record instanceof RecordFragment) {
+            writer.write(((RecordFragment) record).getXml());
+        } else if (record instanceof Element) {
+            try {
+                transformer.transform(new DOMSource((Element) record), new StreamResult(writer));
+            } catch (TransformerException ex) {
+                throw new IOException("Cannot serialize record", ex);
+            }
+        } else {
+            throw new IOException("Cannot serialize record of type: " + record.getClass().getCanonicalName());
+        }
+    }
+
+    static void writeEnd(Writer writer, String trackingId, List<BaseResult> bases) throws IOException {
+        writer.write("</ess:records>");
+        if (trackingId != null) {
+            writeElement(writer, "trackingId", trackingId);
+        }
+        if (bases != null) {
+            writer.write("<ess:bases>");
+            for (BaseResult base : bases) {
+                writer.write("<ess:base>");
+                writeElement(writer, "name", base.name);
+                if (base.hits != null) {
+                    writeElement(writer, "hits", base.hits.toString());
+                }
+                if (base.error != null) {
+                    writeElement(writer, "error", base.error);
+                }
+                writer.write("</ess:base>");
+            }
+            writer.write("</ess:bases>");
+        }
+        writer.write("</ess:response>");
+    }
+
+    private static void writeElement(Writer writer, String name, String text) throws IOException {
+        writer.write("<ess:" + name + ">");
+        writer.write(StringEscapeUtils.escapeXml10(text));
+        writer.write("</ess:" + name + ">");
+    }
+
+    /**
+     * Borrow a transformer for records, to be handed back with
+     * {@link #release(Transformer)}
+     */
+    static Transformer newTransformer() throws IOException {
+        try {
+            Transformer transformer = XmlTools.borrowTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            return transformer;
+        } catch (RuntimeException ex) {
+            throw new IOException("Cannot create transformer", ex);
+        }
+    }
+
+    /**
+     * @param transformer from {@link #newTransformer()}, or null if none
+     *                    was needed
+     */
+    static void release(Transformer transformer) {
+        if (transformer != null) {
+            XmlTools.release(transformer);
+        }
+    }
+}
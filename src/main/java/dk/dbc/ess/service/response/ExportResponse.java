@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.apache.commons.text.StringEscapeUtils;
+
+import javax.xml.transform.Transformer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * The records of an export, written as they are formatted
+ * <p>
+ * Records are written one per line, either as they are (concatenated XML),
+ * or as JSON objects with the record as a string (NDJSON). The output is
+ * flushed after each page.
+ * <p>
+ * Pages are taken from an iterator that blocks until the page is ready. If
+ * a page fails the output stops, and the client sees an incomplete
+ * response.
+ */
+public class ExportResponse implements StreamingOutput {
+
+    public static final MediaType NDJSON_TYPE = new MediaType("application", "x-ndjson");
+
+    public enum Format {
+        XML(MediaType.APPLICATION_XML_TYPE),
+        NDJSON(NDJSON_TYPE);
+
+        private final MediaType mediaType;
+
+        Format(MediaType mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+    }
+
+    private final Iterator<List<Object>> pages;
+    private final Format format;
+    private final IntConsumer onFinish;
+
+    /**
+     * @param pages    the formatted records of each page
+     * @param format   output format
+     * @param onFinish is given the number of records written, when the
+     *                 export ends
+     */
+    public ExportResponse(Iterator<List<Object>> pages, Format format, IntConsumer onFinish) {
+        this.pages = pages;
+        this.format = format;
+        this.onFinish = onFinish;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        Transformer transformer = null;
+        int count = 0;
+        try {
+            while (pages.hasNext()) {
+                List<Object> records;
+                try {
+                    records = pages.next();
+                } catch (RuntimeException ex) {
+                    throw new IOException("Export failed after " + count + " records", ex);
+                }
+                for (Object record : records) {
+                    if (transformer == null && !(record instanceof RecordFragment)) {
+                        transformer = EssResponseWriter.newTransformer();
+                    }
+                    if (format == Format.NDJSON) {
+                        StringWriter xml = new StringWriter();
+                        EssResponseWriter.writeRecord(xml, record, transformer);
+                        writer.write("{\"record\":\"");
+                        writer.write(StringEscapeUtils.escapeJson(xml.toString()));
+                        writer.write("\"}\n");
+                    } else {
+                        EssResponseWriter.writeRecord(writer, record, transformer);
+                        writer.write('\n');
+                    }
+                    count++;
+                }
+                writer.flush();
+            }
+        } finally {
+            EssResponseWriter.release(transformer);
+            onFinish.accept(count);
+        }
+    }
+}
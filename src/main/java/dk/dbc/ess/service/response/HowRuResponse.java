@@ -22,6 +22,7 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import jakarta.xml.bind.annotation.XmlElement;
 import jakarta.xml.bind.annotation.XmlRootElement;
+import java.util.Map;
 
 /**
  *
@@ -36,6 +37,10 @@ public class HowRuResponse {
     @XmlElement(name = "message", required = false, nillable = true)
     public String message;
 
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    @XmlElement(name = "breakers", required = false)
+    public Map<String, String> breakers;
+
     public HowRuResponse() {
     }
 
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import dk.dbc.ess.service.XmlTools;
+import org.apache.commons.text.StringEscapeUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.regex.Pattern;
+
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.END_DOCUMENT;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.SPACE;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * A formatted record as xml text, ready to be written into a response
+ * <p>
+ * The OpenFormat output {@code <display format="x">...</display>} is turned
+ * into {@code <x xmlns="http://oss.dbc.dk/ns/openformat">...</x>} by
+ * rewriting the root element tags. The content is checked for being
+ * well-formed with a streaming parser, but is never built into a tree.
+ * <p>
+ * Unprefixed elements of the content stay in the namespace they had in the
+ * OpenFormat output, like they do when the record is built as a document:
+ * the top level elements declare the original default namespace, which is
+ * no namespace unless the root declared one.
+ */
+public final class RecordFragment {
+    public static final String OPEN_FORMAT_NS = "http://oss.dbc.dk/ns/openformat";
+
+    private static final XMLInputFactory INPUT_FACTORY = XmlTools.inputFactory();
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.-]*");
+    private static final Pattern DEFAULT_NS_DECLARATION = Pattern.compile("\\sxmlns\\s*=");
+
+    private final String xml;
+
+    private RecordFragment(String xml) {
+        this.xml = xml;
+    }
+
+    public String getXml() {
+        return xml;
+    }
+
+    /**
+     * Make a fragment from XML that is known to be a well-formed element
+     *
+     * @param xml serialized element
+     * @return fragment
+     */
+    public static RecordFragment of(String xml) {
+        return new RecordFragment(xml);
+    }
+
+    /**
+     * Make a fragment from a record formatted by OpenFormat
+     *
+     * @param formatted OpenFormat output
+     * @return fragment or null if the output has a shape that cannot be
+     *         rewritten textually (like a doctype or content after the root
+     *         element), and has to be handled as a document
+     * @throws XMLStreamException       if the output isn't well-formed
+     * @throws IllegalArgumentException if the output has no usable format name
+     */
+    public static RecordFragment fromOpenFormat(String formatted) throws XMLStreamException {
+        StringBuilder declarations = new StringBuilder();
+        String format = null;
+        String defaultNamespace = "";
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(formatted));
+        try {
+            int depth = 0;
+            boolean afterRoot = false;
+            for (int event = reader.next() ; event != END_DOCUMENT ; event = reader.next()) {
+                switch (event) {
+                    case START_ELEMENT:
+                        if (depth++ == 0) {
+                            format = reader.getAttributeValue(null, "format");
+                            for (int i = 0 ; i < reader.getNamespaceCount() ; i++) {
+                                String prefix = reader.getNamespacePrefix(i);
+                                if (prefix != null && !prefix.isEmpty()) {
+                                    declarations.append(" xmlns:").append(prefix).append("=\"")
+                                            .append(StringEscapeUtils.escapeXml10(reader.getNamespaceURI(i))).append('"');
+                                } else if (reader.getNamespaceURI(i) != null) {
+                                    defaultNamespace = reader.getNamespaceURI(i);
+                                }
+                            }
+                        }
+                        break;
+                    case END_ELEMENT:
+                        if (--depth == 0) {
+                            afterRoot = true;
+                        }
+                        break;
+                    case CHARACTERS:
+                    case SPACE:
+                        break;
+                    default:
+                        if (afterRoot) {
+                            return null;
+                        }
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (format == null || !NAME.matcher(format).matches()) {
+            throw new IllegalArgumentException("Invalid format name: " + format);
+        }
+
+        int start = rootStart(formatted);
+        if (start < 0) {
+            return null;
+        }
+        int startTagEnd = startTagEnd(formatted, start);
+        StringBuilder xml = new StringBuilder(formatted.length() + 64)
+                .append('<').append(format).append(" xmlns=\"").append(OPEN_FORMAT_NS).append('"')
+                .append(declarations);
+        if (formatted.charAt(startTagEnd - 1) == '/') {
+            xml.append("/>");
+        } else {
+            int endTag = formatted.lastIndexOf("</");
+            xml.append('>');
+            appendContent(xml, formatted, startTagEnd + 1, endTag,
+                          " xmlns=\"" + StringEscapeUtils.escapeXml10(defaultNamespace) + '"');
+            xml.append("</").append(format).append('>');
+        }
+        return new RecordFragment(xml.toString());
+    }
+
+    /**
+     * Copy the content of the root element, declaring the default namespace
+     * on each unprefixed top level element that doesn't declare one itself
+     * <p>
+     * The content is known to be well-formed, so only markup that can
+     * contain a '&lt;' or '&gt;' needs to be recognized.
+     */
+    private static void appendContent(StringBuilder xml, String content, int start, int end, String declaration) {
+        int depth = 0;
+        int pos = start;
+        while (pos < end) {
+            int markup = content.indexOf('<', pos);
+            if (markup < 0 || markup >= end) {
+                break;
+            }
+            int next;
+            if (content.startsWith("<!--", markup)) {
+                next = content.indexOf("-->", markup) + 3;
+            } else if (content.startsWith("<![CDATA[", markup)) {
+                next = content.indexOf("]]>", markup) + 3;
+            } else if (content.startsWith("<?", markup)) {
+                next = content.indexOf("?>", markup) + 2;
+            } else if (content.startsWith("</", markup)) {
+                next = content.indexOf('>', markup) + 1;
+                depth--;
+            } else {
+                int tagEnd = startTagEnd(content, markup);
+                next = tagEnd + 1;
+                if (depth == 0) {
+                    int nameEnd = markup + 1;
+                    while (nameEnd < tagEnd && !Character.isWhitespace(content.charAt(nameEnd)) &&
+                           content.charAt(nameEnd) != '/') {
+                        nameEnd++;
+                    }
+                    if (content.substring(markup + 1, nameEnd).indexOf(':') < 0 &&
+                        !DEFAULT_NS_DECLARATION.matcher(content).region(nameEnd, tagEnd).find()) {
+                        xml.append(content, pos, nameEnd).append(declaration);
+                        pos = nameEnd;
+                    }
+                }
+                if (content.charAt(tagEnd - 1) != '/') {
+                    depth++;
+                }
+            }
+            xml.append(content, pos, next);
+            pos = next;
+        }
+        xml.append(content, pos, end);
+    }
+
+    /**
+     * Find the root element, skipping the xml declaration, processing
+     * instructions and comments
+     */
+    private static int rootStart(String xml) {
+        int pos = 0;
+        for (;;) {
+            pos = xml.indexOf('<', pos);
+            if (pos < 0) {
+                return -1;
+            }
+            if (xml.startsWith("<?", pos)) {
+                pos = xml.indexOf("?>", pos) + 2;
+            } else if (xml.startsWith("<!--", pos)) {
+                pos = xml.indexOf("-->", pos) + 3;
+            } else if (xml.startsWith("<!", pos)) {
+                return -1;
+            } else {
+                return pos;
+            }
+        }
+    }
+
+    private static int startTagEnd(String xml, int start) {
+        char quote = 0;
+        for (int pos = start ; ; pos++) {
+            char c = xml.charAt(pos);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return pos;
+            }
+        }
+    }
+}
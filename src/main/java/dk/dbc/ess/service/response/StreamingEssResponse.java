@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import javax.xml.transform.Transformer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An ESS response written while its records are being formatted
+ * <p>
+ * The start of the response, with the number of hits, is written at once.
+ * Then the records of each batch are written, in page order, as soon as the
+ * batch and all batches before it have been formatted. The output is flushed
+ * after each batch, so only the records of the batch being written are
+ * buffered.
+ * <p>
+ * The document is the same as the one written by {@link EssResponseWriter}.
+ * The tracking id comes after the records, as the response schema says.
+ */
+public class StreamingEssResponse implements StreamingOutput {
+
+    private final long hits;
+    private final List<? extends CompletionStage<List<Object>>> batches;
+    private final String trackingId;
+    private final List<BaseResult> bases;
+
+    public StreamingEssResponse(long hits, List<? extends CompletionStage<List<Object>>> batches, String trackingId) {
+        this(hits, batches, trackingId, null);
+    }
+
+    /**
+     * @param bases outcome of each base in a federated search, or null
+     */
+    public StreamingEssResponse(long hits, List<? extends CompletionStage<List<Object>>> batches, String trackingId, List<BaseResult> bases) {
+        this.hits = hits;
+        this.batches = batches;
+        this.trackingId = trackingId;
+        this.bases = bases;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        EssResponseWriter.writeStart(writer, hits);
+        writer.flush();
+        Transformer transformer = null;
+        try {
+            for (CompletionStage<List<Object>> batch : batches) {
+                List<Object> records;
+                try {
+                    records = batch.toCompletableFuture().join();
+                } catch (CompletionException | CancellationException ex) {
+                    throw new IOException("Formatting of records failed", ex);
+                }
+                for (Object record : records) {
+                    if (transformer == null && !(record instanceof RecordFragment)) {
+                        transformer = EssResponseWriter.newTransformer();
+                    }
+                    EssResponseWriter.writeRecord(writer, record, transformer);
+                }
+                writer.flush();
+            }
+        } finally {
+            EssResponseWriter.release(transformer);
+        }
+        EssResponseWriter.writeEnd(writer, trackingId, bases);
+        writer.flush();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import jakarta.xml.bind.annotation.XmlElement;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * A page of usage per base, client and agency in a range of days
+ */
+@XmlRootElement(name = "usage")
+@SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+public class UsageReportResponse {
+
+    @XmlElement(name = "from", required = true)
+    public String from;
+
+    @XmlElement(name = "to", required = true)
+    public String to;
+
+    @XmlElement(name = "rows", required = true)
+    public List<Row> rows;
+
+    /**
+     * Cursor of the next page, null on the last page
+     */
+    @XmlElement(name = "next", required = false, nillable = true)
+    public String next;
+
+    public UsageReportResponse() {
+    }
+
+    public UsageReportResponse(String from, String to, List<Row> rows, String next) {
+        this.from = from;
+        this.to = to;
+        this.rows = rows;
+        this.next = next;
+    }
+
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    public static class Row {
+        @XmlElement(name = "base", required = true)
+        public String base;
+
+        @XmlElement(name = "clientId", required = false, nillable = true)
+        public String clientId;
+
+        @XmlElement(name = "agencyId", required = false, nillable = true)
+        public String agencyId;
+
+        @XmlElement(name = "requests", required = true)
+        public long requests;
+
+        @XmlElement(name = "records", required = true)
+        public long records;
+
+        public Row() {
+        }
+
+        public Row(String base, String clientId, String agencyId, long requests, long records) {
+            this.base = base;
+            this.clientId = clientId;
+            this.agencyId = agencyId;
+            this.requests = requests;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.sru;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of search results from MetaProxy
+ */
+public final class SruPage {
+    private final Long numberOfRecords;
+    private final Long nextRecordPosition;
+    private final List<SruRecord> records;
+    private final List<Diagnostic> diagnostics;
+
+    SruPage(Long numberOfRecords, Long nextRecordPosition, List<SruRecord> records, List<Diagnostic> diagnostics) {
+        this.numberOfRecords = numberOfRecords;
+        this.nextRecordPosition = nextRecordPosition;
+        this.records = Collections.unmodifiableList(records);
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    /**
+     * Put consecutive pages together into one
+     * <p>
+     * The number of records is taken from the first page, and the next
+     * record position from the last.
+     *
+     * @param pages pages in order
+     * @return one page with the records and diagnostics of all
+     */
+    public static SruPage join(List<SruPage> pages) {
+        List<SruRecord> records = new ArrayList<>();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (SruPage page : pages) {
+            records.addAll(page.records);
+            diagnostics.addAll(page.diagnostics);
+        }
+        return new SruPage(pages.get(0).numberOfRecords, pages.get(pages.size() - 1).nextRecordPosition,
+                           records, diagnostics);
+    }
+
+    /**
+     * @return total number of hits or null if MetaProxy didn't say
+     */
+    public Long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    /**
+     * @return position of the first record of the next page or null if this
+     *         is the last page
+     */
+    public Long getNextRecordPosition() {
+        return nextRecordPosition;
+    }
+
+    public List<SruRecord> getRecords() {
+        return records;
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    public boolean hasDiagnostics() {
+        return !diagnostics.isEmpty();
+    }
+
+    public static final class Diagnostic {
+        private final String uri;
+        private final String details;
+        private final String message;
+
+        Diagnostic(String uri, String details, String message) {
+            this.uri = uri;
+            this.details = details;
+            this.message = message;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public String getDetails() {
+            return details;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
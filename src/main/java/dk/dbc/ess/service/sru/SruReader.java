@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.sru;
+
+import dk.dbc.ess.service.XmlTools;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static javax.xml.stream.XMLStreamConstants.CDATA;
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.COMMENT;
+import static javax.xml.stream.XMLStreamConstants.END_DOCUMENT;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.PROCESSING_INSTRUCTION;
+import static javax.xml.stream.XMLStreamConstants.SPACE;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Streaming reader of SRU searchRetrieveResponse documents from MetaProxy
+ * <p>
+ * The response is read in a single pass. Each record is serialized as it is
+ * read, its controlfield 001 is picked up on the way, and it is handed to
+ * the caller before the rest of the response has been read.
+ */
+public final class SruReader {
+    private static final XMLInputFactory INPUT_FACTORY = XmlTools.coalescingInputFactory();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XmlTools.outputFactory();
+
+    private SruReader() {
+    }
+
+    /**
+     * Read a searchRetrieveResponse
+     *
+     * @param is       response body
+     * @param onRecord called with every record as soon as it has been read
+     * @return the page, including all records
+     * @throws XMLStreamException if the response isn't a searchRetrieveResponse
+     */
+    public static SruPage read(InputStream is, Consumer<SruRecord> onRecord) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+        try {
+            reader.nextTag();
+            if (!"searchRetrieveResponse".equals(reader.getLocalName())) {
+                throw new XMLStreamException("Expected searchRetrieveResponse got: " + reader.getName(), reader.getLocation());
+            }
+            Long numberOfRecords = null;
+            Long nextRecordPosition = null;
+            List<SruRecord> records = new ArrayList<>();
+            List<SruPage.Diagnostic> diagnostics = new ArrayList<>();
+            while (reader.nextTag() == START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "numberOfRecords":
+                        numberOfRecords = readLong(reader);
+                        break;
+                    case "nextRecordPosition":
+                        nextRecordPosition = readLong(reader);
+                        break;
+                    case "records":
+                        readRecords(reader, records, onRecord);
+                        break;
+                    case "diagnostics":
+                        readDiagnostics(reader, diagnostics);
+                        break;
+                    default:
+                        skip(reader);
+                        break;
+                }
+            }
+            return new SruPage(numberOfRecords, nextRecordPosition, records, diagnostics);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readRecords(XMLStreamReader reader, List<SruRecord> records, Consumer<SruRecord> onRecord) throws XMLStreamException {
+        while (reader.nextTag() == START_ELEMENT) {
+            if ("record".equals(reader.getLocalName())) {
+                SruRecord record = readRecord(reader);
+                records.add(record);
+                onRecord.accept(record);
+            } else {
+                skip(reader);
+            }
+        }
+    }
+
+    private static SruRecord readRecord(XMLStreamReader reader) throws XMLStreamException {
+        String escaping = null;
+        SruRecord record = null;
+        while (reader.nextTag() == START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "recordXMLEscaping":
+                    escaping = reader.getElementText().trim();
+                    break;
+                case "recordData":
+                    record = readRecordData(reader, escaping);
+                    break;
+                default:
+                    skip(reader);
+                    break;
+            }
+        }
+        if (record == null) {
+            return SruRecord.unusable("Expected recordData in record");
+        }
+        return record;
+    }
+
+    private static SruRecord readRecordData(XMLStreamReader reader, String escaping) throws XMLStreamException {
+        if (!"xml".equals(escaping)) {
+            skip(reader);
+            return SruRecord.unusable("Expected xml escaped record in response, got: " + escaping);
+        }
+        SruRecord record = null;
+        int content = 0;
+        for (int event = reader.next() ; event != END_ELEMENT ; event = reader.next()) {
+            switch (event) {
+                case START_ELEMENT:
+                    content++;
+                    if (record == null) {
+                        record = copyRecord(reader);
+                    } else {
+                        skip(reader);
+                    }
+                    break;
+                case CHARACTERS:
+                case CDATA:
+                    if (!reader.isWhiteSpace()) {
+                        content++;
+                    }
+                    break;
+                case END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document", reader.getLocation());
+                default:
+                    break;
+            }
+        }
+        if (content != 1) {
+            return SruRecord.unusable("Expected 1 record in response, but got " + content);
+        }
+        return record;
+    }
+
+    /**
+     * Serialize the element the reader is positioned at, and find the
+     * content of its controlfield 001
+     */
+    private static SruRecord copyRecord(XMLStreamReader reader) throws XMLStreamException {
+        StringWriter buffer = new StringWriter();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(buffer);
+        StringBuilder id = null;
+        boolean inId = false;
+        int depth = 0;
+        int event = reader.getEventType();
+        for (;;) {
+            switch (event) {
+                case START_ELEMENT:
+                    depth++;
+                    writeStartElement(reader, writer);
+                    if (depth == 2 && id == null &&
+                        "controlfield".equals(reader.getLocalName()) &&
+                        "001".equals(reader.getAttributeValue(null, "tag"))) {
+                        id = new StringBuilder();
+                        inId = true;
+                    }
+                    break;
+                case END_ELEMENT:
+                    writer.writeEndElement();
+                    inId = false;
+                    depth--;
+                    break;
+                case CHARACTERS:
+                case SPACE:
+                    writer.writeCharacters(reader.getText());
+                    if (inId) {
+                        id.append(reader.getText());
+                    }
+                    break;
+                case CDATA:
+                    writer.writeCData(reader.getText());
+                    if (inId) {
+                        id.append(reader.getText());
+                    }
+                    break;
+                case COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                case END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document", reader.getLocation());
+                default:
+                    break;
+            }
+            if (depth == 0) {
+                break;
+            }
+            event = reader.next();
+        }
+        writer.close();
+        String remoteId = id == null ? null : id.toString().trim();
+        return SruRecord.of(buffer.toString(), remoteId == null || remoteId.isEmpty() ? null : remoteId);
+    }
+
+    private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String namespace = reader.getNamespaceURI();
+        if (namespace == null || namespace.isEmpty()) {
+            writer.writeStartElement("", reader.getLocalName(), "");
+        } else {
+            String prefix = reader.getPrefix();
+            writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), namespace);
+        }
+        for (int i = 0 ; i < reader.getNamespaceCount() ; i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            String uri = reader.getNamespaceURI(i);
+            if (prefix == null || prefix.isEmpty()) {
+                writer.writeDefaultNamespace(uri == null ? "" : uri);
+            } else {
+                writer.writeNamespace(prefix, uri);
+            }
+        }
+        for (int i = 0 ; i < reader.getAttributeCount() ; i++) {
+            String attributeNamespace = reader.getAttributeNamespace(i);
+            if (attributeNamespace == null || attributeNamespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                String prefix = reader.getAttributePrefix(i);
+                writer.writeAttribute(prefix == null ? "" : prefix, attributeNamespace,
+                                      reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    private static void readDiagnostics(XMLStreamReader reader, List<SruPage.Diagnostic> diagnostics) throws XMLStreamException {
+        while (reader.nextTag() == START_ELEMENT) {
+            if ("diagnostic".equals(reader.getLocalName())) {
+                String uri = null;
+                String details = null;
+                String message = null;
+                while (reader.nextTag() == START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "uri":
+                            uri = reader.getElementText().trim();
+                            break;
+                        case "details":
+                            details = reader.getElementText().trim();
+                            break;
+                        case "message":
+                            message = reader.getElementText().trim();
+                            break;
+                        default:
+                            skip(reader);
+                            break;
+                    }
+                }
+                diagnostics.add(new SruPage.Diagnostic(uri, details, message));
+            } else {
+                skip(reader);
+            }
+        }
+    }
+
+    private static Long readLong(XMLStreamReader reader) throws XMLStreamException {
+        String text = reader.getElementText().trim();
+        try {
+            return Long.valueOf(text);
+        } catch (NumberFormatException ex) {
+            throw new XMLStreamException("Expected a number got: " + text, reader.getLocation(), ex);
+        }
+    }
+
+    /**
+     * Skip the element the reader is positioned at, leaving the reader at
+     * its end tag
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case START_ELEMENT:
+                    depth++;
+                    break;
+                case END_ELEMENT:
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document", reader.getLocation());
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.sru;
+
+/**
+ * A record from a MetaProxy search result
+ * <p>
+ * Usable records carry the serialized record content and the value of
+ * controlfield 001 if present. Unusable records carry a description of what
+ * was wrong with them.
+ */
+public final class SruRecord {
+    private final String xml;
+    private final String id;
+    private final String problem;
+
+    private SruRecord(String xml, String id, String problem) {
+        this.xml = xml;
+        this.id = id;
+        this.problem = problem;
+    }
+
+    static SruRecord of(String xml, String id) {
+        return new SruRecord(xml, id, null);
+    }
+
+    static SruRecord unusable(String problem) {
+        return new SruRecord(null, null, problem);
+    }
+
+    public boolean isUsable() {
+        return xml != null;
+    }
+
+    /**
+     * @return the record as a standalone xml document (without declaration)
+     */
+    public String getXml() {
+        return xml;
+    }
+
+    /**
+     * @return content of controlfield 001 or null if the record has none
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return why the record cannot be formatted
+     */
+    public String getProblem() {
+        return problem;
+    }
+}
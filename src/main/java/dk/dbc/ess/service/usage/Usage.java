@@ -1,5 +1,6 @@
 package dk.dbc.ess.service.usage;
 
+import java.time.Instant;
 import java.util.Objects;
 
 /**
@@ -9,12 +10,14 @@ import java.util.Objects;
  *  <br> clientId:    ID of client application accessing the external database (OPTIONAL), e.g. zgateway 
  *  <br> agencyId:    ID of library accessing the external database (OPTIONAL), e.g. 010100
  *  <br> recordCount: Number of records presented to the client (OPTIONAL)
+ *  <br> loggedAt:    When the entry was logged, set by {@link UsageLogger}
  */
 public class Usage {
     private String databaseId;
     private String clientId;
     private String agencyId;
     private int recordCount = 0;
+    private Instant loggedAt;
 
     public String getDatabaseId() {
         return databaseId;
@@ -52,6 +55,15 @@ public class Usage {
         return this;
     }
 
+    public Instant getLoggedAt() {
+        return loggedAt;
+    }
+
+    public Usage withLoggedAt(Instant loggedAt) {
+        this.loggedAt = loggedAt;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -79,6 +91,7 @@ public class Usage {
                 ", clientId='" + clientId + '\'' +
                 ", agencyId='" + agencyId + '\'' +
                 ", recordCount=" + recordCount +
+                ", loggedAt=" + loggedAt +
                 '}';
     }
 }
@@ -0,0 +1,161 @@
+package dk.dbc.ess.service.usage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Usage counted per base, client, agency and minute
+ * <p>
+ * Request threads add to striped counters, without taking locks. A flush
+ * takes the counts accumulated since the last flush, leaving the counters
+ * at zero. Counters of past minutes are removed, once they are drained.
+ */
+public final class UsageAggregator {
+    private static final long MINUTE = 60_000L;
+    private static final Comparator<Rollup> KEY_ORDER = Comparator
+            .comparing((Rollup r) -> r.databaseId)
+            .thenComparing(r -> r.clientId)
+            .thenComparing(r -> r.agencyId)
+            .thenComparingLong(r -> r.minute);
+
+    private final Map<Key, Counts> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param usage    entry to count
+     * @param loggedAt time of the entry, in epoch milliseconds
+     */
+    public void add(Usage usage, long loggedAt) {
+        add(new Key(usage.getDatabaseId(), usage.getClientId(), usage.getAgencyId(), loggedAt - Math.floorMod(loggedAt, MINUTE)),
+            1, usage.getRecordCount());
+    }
+
+    /**
+     * Put counts back, that could not be written
+     *
+     * @param rollups counts from {@link #drain(long)}
+     */
+    public void restore(List<Rollup> rollups) {
+        for (Rollup rollup : rollups) {
+            add(new Key(rollup.databaseId, rollup.clientId, rollup.agencyId, rollup.minute), rollup.requests, rollup.records);
+        }
+    }
+
+    /**
+     * Take the counts accumulated since the last drain
+     *
+     * @param now current time, in epoch milliseconds
+     * @return counts in key order, so concurrent writers lock rows in the
+     *         same order
+     */
+    public List<Rollup> drain(long now) {
+        final long currentMinute = now - Math.floorMod(now, MINUTE);
+        final List<Rollup> rollups = new ArrayList<>();
+        final Iterator<Map.Entry<Key, Counts>> entries = counters.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Key, Counts> entry = entries.next();
+            final Key key = entry.getKey();
+            final long requests = entry.getValue().requests.sumThenReset();
+            final long records = entry.getValue().records.sumThenReset();
+            if (requests != 0) {
+                rollups.add(new Rollup(key.databaseId, key.clientId, key.agencyId, key.minute, requests, records));
+            }
+            if (key.minute < currentMinute - MINUTE) {
+                entries.remove();
+            }
+        }
+        rollups.sort(KEY_ORDER);
+        return rollups;
+    }
+
+    /**
+     * @return number of counters held
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    private void add(Key key, long requests, long records) {
+        final Counts counts = counters.computeIfAbsent(key, k -> new Counts());
+        counts.requests.add(requests);
+        counts.records.add(records);
+    }
+
+    /**
+     * Counts for a base, client, agency and minute. Missing client and
+     * agency ids are empty strings, as they are part of the table key.
+     */
+    public static final class Rollup {
+        public final String databaseId;
+        public final String clientId;
+        public final String agencyId;
+        public final long minute;
+        public final long requests;
+        public final long records;
+
+        Rollup(String databaseId, String clientId, String agencyId, long minute, long requests, long records) {
+            this.databaseId = databaseId;
+            this.clientId = clientId;
+            this.agencyId = agencyId;
+            this.minute = minute;
+            this.requests = requests;
+            this.records = records;
+        }
+
+        @Override
+        public String toString() {
+            return "Rollup{" +
+                    "databaseId='" + databaseId + '\'' +
+                    ", clientId='" + clientId + '\'' +
+                    ", agencyId='" + agencyId + '\'' +
+                    ", minute=" + minute +
+                    ", requests=" + requests +
+                    ", records=" + records +
+                    '}';
+        }
+    }
+
+    private static final class Key {
+        private final String databaseId;
+        private final String clientId;
+        private final String agencyId;
+        private final long minute;
+
+        private Key(String databaseId, String clientId, String agencyId, long minute) {
+            this.databaseId = databaseId;
+            this.clientId = clientId == null ? "" : clientId;
+            this.agencyId = agencyId == null ? "" : agencyId;
+            this.minute = minute;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return minute == key.minute
+                    && databaseId.equals(key.databaseId)
+                    && clientId.equals(key.clientId)
+                    && agencyId.equals(key.agencyId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(databaseId, clientId, agencyId, minute);
+        }
+    }
+
+    private static final class Counts {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder records = new LongAdder();
+    }
+}
@@ -0,0 +1,94 @@
+package dk.dbc.ess.service.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded buffer of usage entries, written in batches
+ * <p>
+ * Entries are offered by request threads and flushed by a single writer at
+ * a time. A batch that fails to be written is kept, and written before any
+ * newer entries at the next flush. Meanwhile new entries wait in the
+ * buffer, until it is full.
+ */
+public final class UsageBuffer {
+
+    private final BlockingQueue<Usage> queue;
+    private final int batchSize;
+    private final Consumer<List<Usage>> writer;
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private List<Usage> failed;
+
+    /**
+     * @param capacity  number of entries the buffer can hold
+     * @param batchSize maximum number of entries written at once
+     * @param writer    writes a batch, throws if it can't
+     */
+    public UsageBuffer(int capacity, int batchSize, Consumer<List<Usage>> writer) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.writer = writer;
+    }
+
+    /**
+     * @param usage entry to buffer
+     * @return false if the buffer is full
+     */
+    public boolean offer(Usage usage) {
+        return queue.offer(usage);
+    }
+
+    /**
+     * @return if a full batch is waiting
+     */
+    public boolean isBatchReady() {
+        return queue.size() >= batchSize;
+    }
+
+    /**
+     * @return number of entries waiting
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Write all entries waiting, in batches
+     * <p>
+     * If another thread is flushing, this returns right away.
+     *
+     * @return number of entries written
+     * @throws RuntimeException if a batch could not be written
+     */
+    public int flush() {
+        if (!flushLock.tryLock()) {
+            return 0;
+        }
+        try {
+            int written = 0;
+            if (failed != null) {
+                writer.accept(failed);
+                written += failed.size();
+                failed = null;
+            }
+            List<Usage> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                try {
+                    writer.accept(batch);
+                } catch (RuntimeException ex) {
+                    failed = batch;
+                    throw ex;
+                }
+                written += batch.size();
+                batch = new ArrayList<>(batchSize);
+            }
+            return written;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
@@ -1,35 +1,360 @@
 package dk.dbc.ess.service.usage;
 
+import dk.dbc.ess.service.EssConfiguration;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
-import jakarta.ejb.Stateless;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
 import jakarta.ejb.TransactionAttribute;
 import jakarta.ejb.TransactionAttributeType;
+import jakarta.enterprise.concurrent.ManagedScheduledExecutorService;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Histogram;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Enterprise Java Bean responsible for persisting usage logs
+ * Logs usage in the background
+ * <p>
+ * Entries are buffered in memory and written with JDBC batch inserts by a
+ * scheduled writer, when the flush interval has passed or a batch is full.
+ * When the buffer is full, an entry is dropped, so the calling thread never
+ * waits on the database. The buffer is drained when the application shuts
+ * down.
+ * <p>
+ * Entries are also counted per base, client, agency and minute, and the
+ * counts are added to the usage_rollup table periodically. Writing an entry
+ * per request to usage_log can be turned off, leaving only the counts.
+ * <p>
+ * If a spool file is configured, the writer appends batches that can't be
+ * written to it instead, as well as any batch taken while the spool isn't
+ * empty, so they are replayed in order. The spool is replayed into usage_log
+ * in the background, once the database can be reached again. The spool is
+ * only ever written by the background writer, never by the calling thread.
+ * <p>
+ * Without a spool file, entries are kept in memory only while the database
+ * can't be reached, and are dropped once the buffer is full, so the spool is
+ * needed for usage_log to survive an outage.
  */
-@Stateless
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class UsageLogger {
+    private static final Logger log = LoggerFactory.getLogger(UsageLogger.class);
 
     @Resource(lookup = "jdbc/ess_db")
     DataSource dataSource;
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Resource
+    ManagedScheduledExecutorService scheduler;
+
+    @Inject
+    EssConfiguration configuration;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private UsageBuffer buffer;
+    private final UsageAggregator aggregator = new UsageAggregator();
+    private ScheduledFuture<?> flushTask;
+    private ScheduledFuture<?> rollupTask;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private Counter dropped;
+    private Counter written;
+    private Counter failed;
+    private Histogram batchSize;
+    private Counter rollupsWritten;
+    private Counter rollupsFailed;
+    private UsageSpool spool;
+    private ScheduledFuture<?> replayTask;
+    private Counter spooled;
+    private Counter replayed;
+
+    @PostConstruct
+    public void init() {
+        buffer = new UsageBuffer(configuration.getUsageQueueMax(), configuration.getUsageBatchSize(), this::writeOrSpool);
+        dropped = metricRegistry.counter("usage_dropped");
+        written = metricRegistry.counter("usage_written");
+        failed = metricRegistry.counter("usage_write_failed");
+        batchSize = metricRegistry.histogram("usage_batch_size");
+        metricRegistry.gauge("usage_queued", buffer::size);
+        rollupsWritten = metricRegistry.counter("usage_rollups_written");
+        rollupsFailed = metricRegistry.counter("usage_rollups_failed");
+        metricRegistry.gauge("usage_rollup_counters", aggregator::size);
+        openSpool();
+        long interval = configuration.getUsageFlushInterval().toMillis();
+        flushTask = scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        long rollupInterval = configuration.getUsageRollupInterval().toMillis();
+        rollupTask = scheduler.scheduleWithFixedDelay(this::flushRollups, rollupInterval, rollupInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void openSpool() {
+        String file = configuration.getUsageSpoolFile();
+        if (file.isEmpty()) {
+            return;
+        }
+        try {
+            spool = UsageSpool.open(Path.of(file), configuration.getUsageSpoolCapacity());
+        } catch (IOException ex) {
+            log.error("Unable to open usage spool {}, spooling is disabled", file, ex);
+            return;
+        }
+        log.info("Usage spool {} holds {} of {} entries", file, spool.size(), spool.capacity());
+        spooled = metricRegistry.counter("usage_spooled");
+        replayed = metricRegistry.counter("usage_spool_replayed");
+        metricRegistry.gauge("usage_spool_size", spool::size);
+        long interval = configuration.getUsageSpoolReplayInterval().toMillis();
+        replayTask = scheduler.scheduleWithFixedDelay(this::replay, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flushTask.cancel(false);
+        rollupTask.cancel(false);
+        log.info("Writing {} buffered usage entries", buffer.size());
+        flush();
+        flushRollups();
+        if (spool != null) {
+            replayTask.cancel(false);
+            try {
+                spool.close();
+            } catch (IOException ex) {
+                log.error("Unable to close usage spool", ex);
+            }
+        }
+    }
+
+    /**
+     * Buffer a usage entry for writing
+     * <p>
+     * The entry is stamped with the time it was logged, which is the time
+     * written to usage_log, however long it waits in the buffer.
+     *
+     * @param usage entry
+     */
     public void log(Usage usage) {
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement insertStatement = connection.prepareStatement(
-                     "INSERT INTO usage_log(database_id, client_id, agency_id, record_count) VALUES (?, ?, ?, ?)")) {
-            insertStatement.setString(1, usage.getDatabaseId());
-            insertStatement.setString(2, usage.getClientId());
-            insertStatement.setString(3, usage.getAgencyId());
-            insertStatement.setInt(4, usage.getRecordCount());
-            insertStatement.executeUpdate();
+        usage.withLoggedAt(Instant.now());
+        aggregator.add(usage, usage.getLoggedAt().toEpochMilli());
+        if (!configuration.isUsageLogRaw()) {
+            return;
+        }
+        if (!buffer.offer(usage)) {
+            dropped.inc();
+            log.warn("Usage buffer is full, dropped {}", usage);
+        }
+        if (buffer.isBatchReady() && flushRequested.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                flushRequested.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Write a batch, or spool it if the database can't be reached
+     * <p>
+     * While the spool holds entries, new entries are appended after them,
+     * rather than written.
+     *
+     * @param usages entries
+     */
+    private void writeOrSpool(List<Usage> usages) {
+        if (spool == null) {
+            write(usages);
+            return;
+        }
+        if (!spool.isEmpty()) {
+            spool(usages);
+            return;
+        }
+        try {
+            write(usages);
+        } catch (RuntimeException ex) {
+            log.warn("Unable to write usage log, spooling {} entries", usages.size(), ex);
+            spool(usages);
+        }
+    }
+
+    private void spool(List<Usage> usages) {
+        int appended = spool.append(usages);
+        spooled.inc(appended);
+        if (appended < usages.size()) {
+            dropped.inc(usages.size() - appended);
+            log.warn("Usage spool is full, dropped {} entries", usages.size() - appended);
+        }
+    }
+
+    private void replay() {
+        try {
+            int batch = configuration.getUsageBatchSize();
+            List<Usage> entries;
+            while (!(entries = spool.peek(batch)).isEmpty()) {
+                write(entries);
+                spool.remove(entries.size());
+                replayed.inc(entries.size());
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Unable to replay usage spool, {} entries waiting", spool.size(), ex);
+        }
+    }
+
+    private void flush() {
+        try {
+            buffer.flush();
+        } catch (RuntimeException ex) {
+            log.error("Unable to write usage log, {} entries waiting", buffer.size(), ex);
+        }
+    }
+
+    private void flushRollups() {
+        final List<UsageAggregator.Rollup> rollups = aggregator.drain(System.currentTimeMillis());
+        if (rollups.isEmpty()) {
+            return;
+        }
+        try {
+            writeRollups(rollups);
+        } catch (RuntimeException ex) {
+            aggregator.restore(rollups);
+            log.error("Unable to write {} usage rollups", rollups.size(), ex);
+        }
+    }
+
+    private void writeRollups(List<UsageAggregator.Rollup> rollups) {
+        final SortedSet<LocalDate> days = new TreeSet<>();
+        for (UsageAggregator.Rollup rollup : rollups) {
+            days.add(Instant.ofEpochMilli(rollup.minute).atOffset(ZoneOffset.UTC).toLocalDate());
+        }
+        try {
+            inTransaction(connection -> {
+                executeBatch(connection, "INSERT INTO usage_rollup(database_id, client_id, agency_id, minute, request_count, record_count)" +
+                             " VALUES (?, ?, ?, ?, ?, ?)" +
+                             " ON CONFLICT (database_id, client_id, agency_id, minute) DO UPDATE SET" +
+                             " request_count = usage_rollup.request_count + EXCLUDED.request_count," +
+                             " record_count = usage_rollup.record_count + EXCLUDED.record_count",
+                             upsertStatement -> {
+                    for (UsageAggregator.Rollup rollup : rollups) {
+                        upsertStatement.setString(1, rollup.databaseId);
+                        upsertStatement.setString(2, rollup.clientId);
+                        upsertStatement.setString(3, rollup.agencyId);
+                        upsertStatement.setObject(4, OffsetDateTime.ofInstant(Instant.ofEpochMilli(rollup.minute), ZoneOffset.UTC));
+                        upsertStatement.setLong(5, rollup.requests);
+                        upsertStatement.setLong(6, rollup.records);
+                        upsertStatement.addBatch();
+                    }
+                });
+                // Tells UsageReports which days to recompute
+                executeBatch(connection, "INSERT INTO usage_dirty_day(day) VALUES (?) ON CONFLICT DO NOTHING",
+                             dirtyStatement -> {
+                    for (LocalDate day : days) {
+                        dirtyStatement.setObject(1, day);
+                        dirtyStatement.addBatch();
+                    }
+                });
+            });
+            rollupsWritten.inc(rollups.size());
         } catch (SQLException e) {
-            throw new IllegalStateException(String.format("error persisting usage log entry %s", usage), e);
+            rollupsFailed.inc(rollups.size());
+            throw new IllegalStateException(String.format("error persisting %d usage rollups", rollups.size()), e);
         }
     }
+
+    private void write(List<Usage> usages) {
+        try {
+            executeBatch("INSERT INTO usage_log(database_id, client_id, agency_id, record_count, logged_at) VALUES (?, ?, ?, ?, ?)",
+                         insertStatement -> {
+                for (Usage usage : usages) {
+                    insertStatement.setString(1, usage.getDatabaseId());
+                    insertStatement.setString(2, usage.getClientId());
+                    insertStatement.setString(3, usage.getAgencyId());
+                    insertStatement.setInt(4, usage.getRecordCount());
+                    insertStatement.setObject(5, OffsetDateTime.ofInstant(usage.getLoggedAt(), ZoneOffset.UTC));
+                    insertStatement.addBatch();
+                }
+            });
+            written.inc(usages.size());
+            batchSize.update(usages.size());
+        } catch (SQLException e) {
+            failed.inc(usages.size());
+            throw new IllegalStateException(String.format("error persisting %d usage log entries", usages.size()), e);
+        }
+    }
+
+    /**
+     * Execute a batch statement in a transaction of its own
+     *
+     * @param sql   statement
+     * @param batch adds the rows to the statement
+     * @throws SQLException if the batch could not be written
+     */
+    private void executeBatch(String sql, Batch batch) throws SQLException {
+        inTransaction(connection -> executeBatch(connection, sql, batch));
+    }
+
+    private static void executeBatch(Connection connection, String sql, Batch batch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            batch.addTo(statement);
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Run statements in a transaction
+     * <p>
+     * If they fail, the transaction is rolled back. Either way the
+     * connection goes back to the pool with auto commit on.
+     *
+     * @param work runs the statements
+     * @throws SQLException if the statements failed
+     */
+    private void inTransaction(Work work) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                work.run(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackException) {
+                    ex.addSuppressed(rollbackException);
+                }
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Batch {
+        void addTo(PreparedStatement statement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface Work {
+        void run(Connection connection) throws SQLException;
+    }
 }
@@ -0,0 +1,157 @@
+package dk.dbc.ess.service.usage;
+
+import dk.dbc.ess.service.EssConfiguration;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import jakarta.ejb.DependsOn;
+import jakarta.ejb.Schedule;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the monthly partitions of usage_log
+ * <p>
+ * At startup and every hour, partitions are created for the current month
+ * and the configured number of months ahead, and partitions older than the
+ * retention are detached or dropped. Nodes take turns using an advisory
+ * lock, a node that doesn't get the lock skips the run.
+ * <p>
+ * Each partition is created in a savepoint of its own, so a partition that
+ * can't be created doesn't stop the others, or the retention.
+ */
+@Singleton
+@Startup
+@DependsOn("DatabaseMigrator")
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class UsagePartitionMaintainer {
+    private static final Logger log = LoggerFactory.getLogger(UsagePartitionMaintainer.class);
+
+    /**
+     * Advisory lock key, the ASCII of "usagelog"
+     */
+    private static final long LOCK_KEY = 0x75736167656c6f67L;
+
+    @Resource(lookup = "jdbc/ess_db")
+    DataSource dataSource;
+
+    @Inject
+    EssConfiguration configuration;
+
+    @PostConstruct
+    public void init() {
+        maintain();
+    }
+
+    @Schedule(hour = "*", minute = "7", persistent = false)
+    public void maintain() {
+        YearMonth current = YearMonth.now(ZoneOffset.UTC);
+        try (Connection connection = dataSource.getConnection()) {
+            if (connection.isReadOnly()) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            try {
+                if (lock(connection)) {
+                    List<String> partitions = partitions(connection);
+                    createPartitions(connection, current, partitions);
+                    removePartitions(connection, current, partitions);
+                }
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            log.error("Unable to maintain usage_log partitions", ex);
+        }
+    }
+
+    private static boolean lock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_xact_lock(?)")) {
+            statement.setLong(1, LOCK_KEY);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private void createPartitions(Connection connection, YearMonth current, List<String> partitions) throws SQLException {
+        for (YearMonth month : UsagePartitions.upcoming(current, configuration.getUsagePartitionsAhead())) {
+            if (partitions.contains(UsagePartitions.name(month))) {
+                continue;
+            }
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                createPartition(connection, month);
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException ex) {
+                connection.rollback(savepoint);
+                log.error("Unable to create usage_log partition {}", UsagePartitions.name(month), ex);
+            }
+        }
+    }
+
+    /**
+     * Create the partition of a month, moving rows of the month from the
+     * default partition into it
+     *
+     * @param connection connection in a transaction
+     * @param month      month of the partition
+     * @throws SQLException if the partition could not be created
+     */
+    public static void createPartition(Connection connection, YearMonth month) throws SQLException {
+        log.info("Creating usage_log partition {}", UsagePartitions.name(month));
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : UsagePartitions.createStatements(month)) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private void removePartitions(Connection connection, YearMonth current, List<String> partitions) throws SQLException {
+        List<String> expired = UsagePartitions.expired(partitions, current, configuration.getUsageRetentionMonths());
+        try (Statement statement = connection.createStatement()) {
+            for (String partition : expired) {
+                if (configuration.isUsageRetentionDrop()) {
+                    log.info("Dropping usage_log partition {}", partition);
+                    statement.execute("DROP TABLE " + partition);
+                } else {
+                    log.info("Detaching usage_log partition {}", partition);
+                    statement.execute("ALTER TABLE usage_log DETACH PARTITION " + partition);
+                }
+            }
+        }
+    }
+
+    private static List<String> partitions(Connection connection) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT child.relname FROM pg_inherits" +
+                " JOIN pg_class parent ON parent.oid = pg_inherits.inhparent" +
+                " JOIN pg_class child ON child.oid = pg_inherits.inhrelid" +
+                " WHERE parent.relname = 'usage_log'");
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                partitions.add(resultSet.getString(1));
+            }
+        }
+        return partitions;
+    }
+}
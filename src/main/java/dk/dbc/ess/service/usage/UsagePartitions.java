@@ -0,0 +1,106 @@
+package dk.dbc.ess.service.usage;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Names and bounds of the monthly partitions of usage_log
+ * <p>
+ * A partition holds the rows logged in a month, in UTC, and is named
+ * usage_log_YYYY_MM.
+ */
+public final class UsagePartitions {
+    static final String PREFIX = "usage_log_";
+    static final String DEFAULT = "usage_log_default";
+    private static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("uuuu_MM");
+
+    private UsagePartitions() {
+    }
+
+    /**
+     * @param month month of the partition
+     * @return partition name
+     */
+    public static String name(YearMonth month) {
+        return PREFIX + month.format(MONTH);
+    }
+
+    /**
+     * @param name table name
+     * @return the month of the partition, or null if the name isn't that of
+     *         a monthly partition
+     */
+    public static YearMonth month(String name) {
+        if (!name.startsWith(PREFIX)) {
+            return null;
+        }
+        try {
+            return YearMonth.parse(name.substring(PREFIX.length()), MONTH);
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Statements creating a partition
+     * <p>
+     * Rows of the month may already be in the default partition, which would
+     * make creating the partition fail. The partition is therefore created
+     * as a table of its own, the rows are moved into it, and it is then
+     * attached.
+     *
+     * @param month month of the partition
+     * @return statements to run in order, in one transaction
+     */
+    public static List<String> createStatements(YearMonth month) {
+        String name = name(month);
+        String from = "'" + month.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC) + "'";
+        String to = "'" + month.plusMonths(1).atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC) + "'";
+        return List.of(
+                "CREATE TABLE " + name + " (LIKE usage_log INCLUDING DEFAULTS INCLUDING CONSTRAINTS)",
+                "WITH moved AS (DELETE FROM " + DEFAULT + " WHERE logged_at >= " + from + " AND logged_at < " + to +
+                " RETURNING *) INSERT INTO " + name + " SELECT * FROM moved",
+                "ALTER TABLE usage_log ATTACH PARTITION " + name + " FOR VALUES FROM (" + from + ") TO (" + to + ")");
+    }
+
+    /**
+     * @param current the current month
+     * @param ahead   number of months after the current one
+     * @return the months partitions should exist for
+     */
+    public static List<YearMonth> upcoming(YearMonth current, int ahead) {
+        List<YearMonth> months = new ArrayList<>(ahead + 1);
+        for (int i = 0; i <= ahead; i++) {
+            months.add(current.plusMonths(i));
+        }
+        return months;
+    }
+
+    /**
+     * @param partitions names of the existing partitions
+     * @param current    the current month
+     * @param retention  number of months kept before the current one, zero
+     *                   means all are kept
+     * @return names of the partitions past the retention
+     */
+    public static List<String> expired(Collection<String> partitions, YearMonth current, int retention) {
+        List<String> expired = new ArrayList<>();
+        if (retention == 0) {
+            return expired;
+        }
+        YearMonth oldest = current.minusMonths(retention);
+        for (String partition : partitions) {
+            YearMonth month = month(partition);
+            if (month != null && month.isBefore(oldest)) {
+                expired.add(partition);
+            }
+        }
+        expired.sort(null);
+        return expired;
+    }
+}
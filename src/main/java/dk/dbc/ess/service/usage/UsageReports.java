@@ -0,0 +1,195 @@
+package dk.dbc.ess.service.usage;
+
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.DependsOn;
+import jakarta.ejb.Schedule;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Usage reports, from daily and monthly usage tables
+ * <p>
+ * The tables are refreshed from usage_rollup every five minutes. A refresh
+ * recomputes the days marked in usage_dirty_day, where counts have been
+ * written since the previous refresh, and their months. This includes
+ * counts a node could only write late, like after a database outage. Only
+ * one node refreshes at a time, the others skip the run.
+ */
+@Singleton
+@Startup
+@DependsOn("DatabaseMigrator")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class UsageReports {
+    private static final Logger log = LoggerFactory.getLogger(UsageReports.class);
+
+    @Resource(lookup = "jdbc/ess_db")
+    DataSource dataSource;
+
+    @Schedule(hour = "*", minute = "*/5", persistent = false)
+    public void refresh() {
+        try (Connection connection = dataSource.getConnection()) {
+            if (connection.isReadOnly()) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            try {
+                refresh(connection);
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            log.error("Unable to refresh usage reports", ex);
+        }
+    }
+
+    private static void refresh(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM usage_report_refresh WHERE name = 'usage' FOR UPDATE SKIP LOCKED");
+             ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                return;
+            }
+        }
+        final SortedSet<LocalDate> days = new TreeSet<>();
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM usage_dirty_day RETURNING day");
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                days.add(resultSet.getObject(1, LocalDate.class));
+            }
+        }
+        final SortedSet<LocalDate> months = new TreeSet<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO usage_daily(day, database_id, client_id, agency_id, request_count, record_count)" +
+                " SELECT (minute AT TIME ZONE 'UTC')::date, database_id, client_id, agency_id, sum(request_count), sum(record_count)" +
+                " FROM usage_rollup WHERE minute >= ? AND minute < ?" +
+                " GROUP BY 1, 2, 3, 4" +
+                " ON CONFLICT (day, database_id, client_id, agency_id) DO UPDATE SET" +
+                " request_count = EXCLUDED.request_count, record_count = EXCLUDED.record_count")) {
+            for (LocalDate day : days) {
+                statement.setObject(1, day.atStartOfDay().atOffset(ZoneOffset.UTC));
+                statement.setObject(2, day.plusDays(1).atStartOfDay().atOffset(ZoneOffset.UTC));
+                statement.addBatch();
+                months.add(day.withDayOfMonth(1));
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO usage_monthly(month, database_id, client_id, agency_id, request_count, record_count)" +
+                " SELECT date_trunc('month', day)::date, database_id, client_id, agency_id, sum(request_count), sum(record_count)" +
+                " FROM usage_daily WHERE day >= ? AND day < ?" +
+                " GROUP BY 1, 2, 3, 4" +
+                " ON CONFLICT (month, database_id, client_id, agency_id) DO UPDATE SET" +
+                " request_count = EXCLUDED.request_count, record_count = EXCLUDED.record_count")) {
+            for (LocalDate month : months) {
+                statement.setObject(1, month);
+                statement.setObject(2, month.plusMonths(1));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE usage_report_refresh SET refreshed_at = now() WHERE name = 'usage'")) {
+            statement.executeUpdate();
+        }
+        if (!days.isEmpty()) {
+            log.debug("Refreshed usage reports for {} days from {}", days.size(), days.first());
+        }
+    }
+
+    /**
+     * Usage per base, client and agency in a range of days
+     * <p>
+     * Rows are ordered by base, client and agency, and a page starts after
+     * the row given by the cursor. When the range is whole months, the
+     * monthly table is used.
+     *
+     * @param from   first day
+     * @param to     day after the last day
+     * @param base   only this base, if not null
+     * @param after  the last row of the previous page, or null for the first
+     *               page
+     * @param limit  maximum number of rows
+     * @return up to limit rows
+     */
+    public List<Row> report(LocalDate from, LocalDate to, String base, Row after, int limit) {
+        final boolean monthly = from.getDayOfMonth() == 1 && to.getDayOfMonth() == 1;
+        final String table = monthly ? "usage_monthly" : "usage_daily";
+        final String period = monthly ? "month" : "day";
+        final StringBuilder sql = new StringBuilder()
+                .append("SELECT database_id, client_id, agency_id, sum(request_count), sum(record_count) FROM ").append(table)
+                .append(" WHERE ").append(period).append(" >= ? AND ").append(period).append(" < ?");
+        if (base != null) {
+            sql.append(" AND database_id = ?");
+        }
+        if (after != null) {
+            sql.append(" AND (database_id, client_id, agency_id) > (?, ?, ?)");
+        }
+        sql.append(" GROUP BY database_id, client_id, agency_id ORDER BY database_id, client_id, agency_id LIMIT ?");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int i = 1;
+            statement.setObject(i++, from);
+            statement.setObject(i++, to);
+            if (base != null) {
+                statement.setString(i++, base);
+            }
+            if (after != null) {
+                statement.setString(i++, after.databaseId);
+                statement.setString(i++, after.clientId);
+                statement.setString(i++, after.agencyId);
+            }
+            statement.setInt(i, limit);
+            final List<Row> rows = new ArrayList<>(Math.min(limit, 1000));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    rows.add(new Row(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                                     resultSet.getLong(4), resultSet.getLong(5)));
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw new IllegalStateException("error reading usage report", e);
+        }
+    }
+
+    /**
+     * Usage of a base, client and agency. Missing client and agency ids are
+     * empty strings.
+     */
+    public static final class Row {
+        public final String databaseId;
+        public final String clientId;
+        public final String agencyId;
+        public final long requests;
+        public final long records;
+
+        public Row(String databaseId, String clientId, String agencyId, long requests, long records) {
+            this.databaseId = databaseId;
+            this.clientId = clientId;
+            this.agencyId = agencyId;
+            this.requests = requests;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package dk.dbc.ess.service.usage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable spool of usage entries, for when the database can't be reached
+ * <p>
+ * The spool is a memory mapped file, holding a ring of fixed size records.
+ * Each record carries its sequence number, the time the entry was logged,
+ * and a checksum over both and the entry. The header only
+ * holds the sequence number of the oldest record not yet replayed, the end
+ * of the spool is found by reading records from there until one is missing
+ * or damaged. A record that was partly written when the process stopped is
+ * thus never replayed, and neither are records after it.
+ * <p>
+ * Records are removed when they have been written to the database, so
+ * records may be replayed twice if the process stops in between.
+ */
+public final class UsageSpool implements Closeable {
+
+    static final int RECORD_SIZE = 256;
+    private static final int MAGIC = 0x55535031; // USP1
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_POS = 0;
+    private static final int RECORD_SIZE_POS = 4;
+    private static final int CAPACITY_POS = 8;
+    private static final int HEAD_POS = 16;
+    // sequence(8) timestamp(8) record count(4) checksum(4)
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int CHECKSUM_POS = 20;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private long head;
+    private long tail;
+
+    private UsageSpool(FileChannel channel, MappedByteBuffer map, int capacity, long head) {
+        this.channel = channel;
+        this.map = map;
+        this.capacity = capacity;
+        this.head = head;
+        this.tail = head;
+        while (tail - head < capacity && read(tail) != null) {
+            tail++;
+        }
+    }
+
+    /**
+     * Open a spool file, or create it if it doesn't exist
+     * <p>
+     * An existing file keeps the capacity it was created with.
+     *
+     * @param file     spool file
+     * @param capacity number of entries a new spool file can hold
+     * @return spool
+     * @throws IOException if the file can't be opened, or isn't a spool file
+     */
+    public static UsageSpool open(Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            if (!created) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt(MAGIC_POS) != MAGIC || header.getInt(RECORD_SIZE_POS) != RECORD_SIZE) {
+                    throw new IOException("Not a usage spool file: " + file);
+                }
+                capacity = header.getInt(CAPACITY_POS);
+            }
+            if (capacity <= 0) {
+                throw new IOException("Invalid usage spool capacity: " + capacity);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            if (created) {
+                map.putInt(MAGIC_POS, MAGIC);
+                map.putInt(RECORD_SIZE_POS, RECORD_SIZE);
+                map.putInt(CAPACITY_POS, capacity);
+                map.putLong(HEAD_POS, 0);
+                map.force();
+            }
+            return new UsageSpool(channel, map, capacity, map.getLong(HEAD_POS));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Append entries, and force them to disk
+     * <p>
+     * Entries are appended in order, until the spool is full. An entry that
+     * doesn't fit in a record is skipped. Each entry keeps the time it was
+     * logged.
+     *
+     * @param usages entries to append, stamped with the time they were logged
+     * @return number of entries appended
+     */
+    public synchronized int append(List<Usage> usages) {
+        int appended = 0;
+        for (Usage usage : usages) {
+            if (tail - head >= capacity) {
+                break;
+            }
+            if (write(tail, usage)) {
+                tail++;
+                appended++;
+            }
+        }
+        if (appended > 0) {
+            map.force();
+        }
+        return appended;
+    }
+
+    /**
+     * Read the oldest entries, without removing them
+     *
+     * @param max maximum number of entries to read
+     * @return entries with the time they were logged, oldest first
+     */
+    public synchronized List<Usage> peek(int max) {
+        int count = (int) Math.min(max, tail - head);
+        List<Usage> entries = new ArrayList<>(count);
+        for (long sequence = head; sequence < head + count; sequence++) {
+            entries.add(read(sequence));
+        }
+        return entries;
+    }
+
+    /**
+     * Remove the oldest entries, once they have been written elsewhere
+     *
+     * @param count number of entries to remove
+     */
+    public synchronized void remove(int count) {
+        head = Math.min(tail, head + count);
+        map.putLong(HEAD_POS, head);
+        map.force();
+    }
+
+    /**
+     * @return number of entries in the spool
+     */
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return if the spool holds no entries
+     */
+    public synchronized boolean isEmpty() {
+        return tail == head;
+    }
+
+    /**
+     * @return number of entries the spool can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    private ByteBuffer record(long sequence) {
+        int position = HEADER_SIZE + (int) Math.floorMod(sequence, (long) capacity) * RECORD_SIZE;
+        ByteBuffer record = map.duplicate();
+        record.position(position).limit(position + RECORD_SIZE);
+        return record.slice();
+    }
+
+    private boolean write(long sequence, Usage usage) {
+        ByteBuffer record = record(sequence);
+        try {
+            record.putLong(sequence)
+                    .putLong(usage.getLoggedAt().toEpochMilli())
+                    .putInt(usage.getRecordCount())
+                    .putInt(0);
+            putString(record, usage.getDatabaseId());
+            putString(record, usage.getClientId());
+            putString(record, usage.getAgencyId());
+        } catch (BufferOverflowException ex) {
+            record.putInt(CHECKSUM_POS, 0);
+            return false;
+        }
+        record.putInt(CHECKSUM_POS, checksum(record, record.position()));
+        return true;
+    }
+
+    private Usage read(long sequence) {
+        ByteBuffer record = record(sequence);
+        if (record.getLong(0) != sequence) {
+            return null;
+        }
+        try {
+            record.position(RECORD_HEADER_SIZE);
+            String databaseId = getString(record);
+            String clientId = getString(record);
+            String agencyId = getString(record);
+            if (databaseId == null || record.getInt(CHECKSUM_POS) != checksum(record, record.position())) {
+                return null;
+            }
+            return new Usage()
+                    .withDatabaseId(databaseId)
+                    .withClientId(clientId)
+                    .withAgencyId(agencyId)
+                    .withRecordCount(record.getInt(16))
+                    .withLoggedAt(Instant.ofEpochMilli(record.getLong(8)));
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Checksum of the record header before the checksum itself, including
+     * the sequence number and timestamp, and of the entry
+     */
+    private static int checksum(ByteBuffer record, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer data = record.duplicate();
+        data.position(0).limit(CHECKSUM_POS);
+        crc.update(data);
+        data.limit(length).position(RECORD_HEADER_SIZE);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void putString(ByteBuffer record, String value) {
+        if (value == null) {
+            record.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        record.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,20 @@
+-- Usage counted per base, client, agency and minute. Missing client and
+-- agency ids are stored as '', so they can be part of the primary key,
+-- which is what the nodes upsert their counts on.
+CREATE TABLE usage_rollup (
+    database_id     TEXT NOT NULL,
+    client_id       TEXT NOT NULL DEFAULT '',
+    agency_id       TEXT NOT NULL DEFAULT '',
+    minute          TIMESTAMPTZ NOT NULL,
+    request_count   BIGINT NOT NULL CHECK(request_count >= 0),
+    record_count    BIGINT NOT NULL CHECK(record_count >= 0),
+    PRIMARY KEY (database_id, client_id, agency_id, minute)
+);
+
+CREATE INDEX usage_rollup_minute ON usage_rollup(minute);
+
+INSERT INTO usage_rollup(database_id, client_id, agency_id, minute, request_count, record_count)
+    SELECT database_id, COALESCE(client_id, ''), COALESCE(agency_id, ''), date_trunc('minute', logged_at),
+           count(*), sum(record_count)
+    FROM usage_log
+    GROUP BY 1, 2, 3, 4;
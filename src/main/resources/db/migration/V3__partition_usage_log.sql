@@ -0,0 +1,43 @@
+-- usage_log is split into monthly partitions on logged_at, with month
+-- boundaries in UTC. Partitions are named usage_log_YYYY_MM. The
+-- application creates future partitions ahead of time and removes those
+-- past the retention. Rows outside all partitions end in usage_log_default.
+-- The B-tree index on logged_at is replaced by a BRIN index, as rows are
+-- appended in logged_at order.
+ALTER TABLE usage_log RENAME TO usage_log_unpartitioned;
+DROP INDEX usage_log_database_id;
+DROP INDEX usage_log_client_id;
+DROP INDEX usage_log_logged_at;
+
+CREATE TABLE usage_log (
+    database_id     TEXT NOT NULL,
+    client_id       TEXT,
+    agency_id       TEXT,
+    record_count    INTEGER NOT NULL CHECK(record_count >= 0),
+    logged_at       TIMESTAMPTZ NOT NULL DEFAULT now()
+) PARTITION BY RANGE (logged_at);
+
+CREATE INDEX usage_log_database_id ON usage_log(database_id);
+CREATE INDEX usage_log_client_id ON usage_log(client_id);
+CREATE INDEX usage_log_logged_at ON usage_log USING BRIN (logged_at);
+
+DO $$
+DECLARE
+    month TIMESTAMP := date_trunc('month', COALESCE((SELECT min(logged_at) FROM usage_log_unpartitioned), now()) AT TIME ZONE 'UTC');
+    last  TIMESTAMP := date_trunc('month', now() AT TIME ZONE 'UTC') + INTERVAL '2 months';
+BEGIN
+    WHILE month <= last LOOP
+        EXECUTE format('CREATE TABLE %I PARTITION OF usage_log FOR VALUES FROM (%L) TO (%L)',
+                       'usage_log_' || to_char(month, 'YYYY_MM'),
+                       month AT TIME ZONE 'UTC', (month + INTERVAL '1 month') AT TIME ZONE 'UTC');
+        month := month + INTERVAL '1 month';
+    END LOOP;
+END
+$$;
+
+CREATE TABLE usage_log_default PARTITION OF usage_log DEFAULT;
+
+INSERT INTO usage_log(database_id, client_id, agency_id, record_count, logged_at)
+    SELECT database_id, client_id, agency_id, record_count, logged_at FROM usage_log_unpartitioned;
+
+DROP TABLE usage_log_unpartitioned;
@@ -0,0 +1,39 @@
+-- Usage per base, client and agency by day and by month (UTC), for reports.
+-- The tables are refreshed incrementally from usage_rollup by the
+-- application, from the day before refreshed_at in usage_report_refresh.
+CREATE TABLE usage_daily (
+    day             DATE NOT NULL,
+    database_id     TEXT NOT NULL,
+    client_id       TEXT NOT NULL,
+    agency_id       TEXT NOT NULL,
+    request_count   BIGINT NOT NULL,
+    record_count    BIGINT NOT NULL,
+    PRIMARY KEY (day, database_id, client_id, agency_id)
+);
+
+CREATE TABLE usage_monthly (
+    month           DATE NOT NULL,
+    database_id     TEXT NOT NULL,
+    client_id       TEXT NOT NULL,
+    agency_id       TEXT NOT NULL,
+    request_count   BIGINT NOT NULL,
+    record_count    BIGINT NOT NULL,
+    PRIMARY KEY (month, database_id, client_id, agency_id)
+);
+
+CREATE TABLE usage_report_refresh (
+    name            TEXT PRIMARY KEY,
+    refreshed_at    TIMESTAMPTZ NOT NULL
+);
+
+INSERT INTO usage_daily(day, database_id, client_id, agency_id, request_count, record_count)
+    SELECT (minute AT TIME ZONE 'UTC')::date, database_id, client_id, agency_id, sum(request_count), sum(record_count)
+    FROM usage_rollup
+    GROUP BY 1, 2, 3, 4;
+
+INSERT INTO usage_monthly(month, database_id, client_id, agency_id, request_count, record_count)
+    SELECT date_trunc('month', day)::date, database_id, client_id, agency_id, sum(request_count), sum(record_count)
+    FROM usage_daily
+    GROUP BY 1, 2, 3, 4;
+
+INSERT INTO usage_report_refresh(name, refreshed_at) VALUES ('usage', now());
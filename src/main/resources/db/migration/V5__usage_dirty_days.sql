@@ -0,0 +1,12 @@
+-- Days (UTC) with usage_rollup counts not yet in usage_daily and
+-- usage_monthly. The nodes mark a day when they upsert counts for it, and
+-- the report refresh recomputes the marked days and their months, however
+-- late the counts were written.
+CREATE TABLE usage_dirty_day (
+    day             DATE PRIMARY KEY
+);
+
+INSERT INTO usage_dirty_day(day)
+    SELECT DISTINCT (minute AT TIME ZONE 'UTC')::date
+    FROM usage_rollup
+    WHERE minute >= (SELECT refreshed_at - INTERVAL '1 hour' FROM usage_report_refresh WHERE name = 'usage');
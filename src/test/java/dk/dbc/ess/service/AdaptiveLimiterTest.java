@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class AdaptiveLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger shed = new AtomicInteger();
+
+    private AdaptiveLimiter limiter(int initial, int maxQueue) {
+        return new AdaptiveLimiter(initial, 1, 10, Duration.ofMillis(100), maxQueue, Duration.ofSeconds(10),
+                                   shed::incrementAndGet, clock::get);
+    }
+
+    @Test
+    void callsBeyondLimitWait() {
+        AdaptiveLimiter limiter = limiter(1, 5);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletionStage<String> a = limiter.submit(() -> {
+            calls.incrementAndGet();
+            return first;
+        }, s -> false);
+        CompletionStage<String> b = limiter.submit(() -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("b");
+        }, s -> false);
+
+        assertThat("waiting", calls.get(), is(1));
+        assertThat("queued", limiter.getQueued(), is(1));
+        first.complete("a");
+        assertThat("a", a.toCompletableFuture().join(), is("a"));
+        assertThat("b", b.toCompletableFuture().join(), is("b"));
+        assertThat("in flight", limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    void fullQueueSheds() {
+        AdaptiveLimiter limiter = limiter(1, 0);
+        limiter.submit(CompletableFuture::new, s -> false);
+
+        CompletionStage<Object> rejected = limiter.submit(CompletableFuture::new, s -> false);
+
+        Throwable cause = rejected.toCompletableFuture().handle((r, ex) -> Futures.unwrap(ex)).join();
+        assertThat(cause, instanceOf(RejectedExecutionException.class));
+        assertThat("shed", shed.get(), is(1));
+    }
+
+    @Test
+    void limitFollowsLatency() {
+        AdaptiveLimiter limiter = limiter(4, 0);
+        for (int i = 0; i < 20; i++) {
+            slowCall(limiter, 500);
+        }
+        assertThat("backed off", limiter.getLimit(), is(1));
+
+        for (int i = 0; i < 20; i++) {
+            slowCall(limiter, 10);
+        }
+        assertThat("grown", limiter.getLimit() > 1, is(true));
+    }
+
+    @Test
+    void overloadedResultReducesLimit() {
+        AdaptiveLimiter limiter = limiter(4, 0);
+        limiter.submit(() -> CompletableFuture.completedFuture("busy"), "busy"::equals);
+
+        assertThat(limiter.getLimit(), is(3));
+    }
+
+    private void slowCall(AdaptiveLimiter limiter, long millis) {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        limiter.submit(() -> call, s -> false);
+        clock.addAndGet(Duration.ofMillis(millis).toNanos());
+        call.complete("done");
+    }
+}
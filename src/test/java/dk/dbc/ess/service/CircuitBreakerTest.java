@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(4, 50, Duration.ofSeconds(30), clock::get);
+
+    @Test
+    void opensWhenFailureRateIsReached() {
+        calls(false, true, false);
+        assertThat("window not full", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        calls(true);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat("fails fast", breaker.tryAcquire(), is(CircuitBreaker.REJECTED));
+    }
+
+    @Test
+    void oldOutcomesLeaveTheWindow() {
+        calls(true, false, false, false, false, true, false, false);
+
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void successfulProbeCloses() {
+        calls(true, true, true, true);
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+
+        long probe = breaker.tryAcquire();
+        assertThat("probe", probe == CircuitBreaker.REJECTED, is(false));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat("one probe at a time", breaker.tryAcquire(), is(CircuitBreaker.REJECTED));
+        breaker.record(probe, false);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void failedProbeOpensAgain() {
+        calls(true, true, true, true);
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+
+        long probe = breaker.tryAcquire();
+        assertThat("probe", probe == CircuitBreaker.REJECTED, is(false));
+        breaker.record(probe, true);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat("fails fast", breaker.tryAcquire(), is(CircuitBreaker.REJECTED));
+    }
+
+    @Test
+    void staleOutcomesDontSettleTheProbe() {
+        long slow = breaker.tryAcquire();
+        calls(true, true, true, true);
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+
+        long probe = breaker.tryAcquire();
+        assertThat("probe", probe == CircuitBreaker.REJECTED, is(false));
+        breaker.record(slow, false);
+        assertThat("call from before the breaker opened is ignored", breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        breaker.record(probe, false);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void staleOutcomesDontCountWhenClosedAgain() {
+        long slow = breaker.tryAcquire();
+        calls(true, true, true, true);
+        clock.addAndGet(Duration.ofSeconds(31).toNanos());
+        breaker.record(breaker.tryAcquire(), false);
+
+        breaker.record(slow, true);
+        calls(true, false, false);
+        assertThat("window holds only calls from after closing", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    private void calls(boolean... failed) {
+        for (boolean f : failed) {
+            long permit = breaker.tryAcquire();
+            assertThat("let through", permit == CircuitBreaker.REJECTED, is(false));
+            breaker.record(permit, f);
+        }
+    }
+}
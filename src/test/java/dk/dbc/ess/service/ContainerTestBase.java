@@ -34,6 +34,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 public abstract class ContainerTestBase {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ContainerTestBase.class);
+    private static final Duration USAGE_FLUSH_INTERVAL = Duration.ofMillis(100);
+    private static final Duration USAGE_WAIT = Duration.ofSeconds(2);
 
     static final WireMockServer wireMockServer;
     static final DBCPostgreSQLContainer essDbContainer;
@@ -61,7 +63,28 @@ public abstract class ContainerTestBase {
         }
     }
 
+    /**
+     * Usage is logged in the background, so wait for it to be written,
+     * giving entries of the same request time to follow the first
+     */
     static List<Usage> getUsageByClientId(String clientId) {
+        try {
+            final long giveUp = System.nanoTime() + USAGE_WAIT.toNanos();
+            while (System.nanoTime() < giveUp) {
+                if (!queryUsageByClientId(clientId).isEmpty()) {
+                    Thread.sleep(USAGE_FLUSH_INTERVAL.toMillis() * 3);
+                    break;
+                }
+                Thread.sleep(USAGE_FLUSH_INTERVAL.toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return queryUsageByClientId(clientId);
+    }
+
+    private static List<Usage> queryUsageByClientId(String clientId) {
         try (Connection connection = getEssDbConnection()) {
             final PreparedStatement selectStatement;
             if (clientId == null) {
@@ -118,6 +141,7 @@ public abstract class ContainerTestBase {
                     .withEnv("META_PROXY_URL", wireMockServerUrl)
                     .withEnv("OPEN_FORMAT_URL", wireMockServerUrl + "/api/v1/format")
                     .withEnv("BASES", "libris,bibsys")
+                    .withEnv("USAGE_FLUSH_INTERVAL", USAGE_FLUSH_INTERVAL.toMillis() + "ms")
                     .withExposedPorts(8080)
                     .waitingFor(Wait.forHttp("/openapi"))
                     .withStartupTimeout(Duration.ofMinutes(2));
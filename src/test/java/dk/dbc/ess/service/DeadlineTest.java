@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class DeadlineTest {
+
+    @Test
+    void zeroTimeoutIsNoDeadline() {
+        assertThat(Deadline.after(Duration.ZERO), sameInstance(Deadline.NONE));
+        assertThat(Deadline.NONE.isExpired(), is(false));
+    }
+
+    @Test
+    void earliestWins() {
+        Deadline soon = Deadline.after(Duration.ofSeconds(1));
+        Deadline later = Deadline.after(Duration.ofHours(1));
+
+        assertThat(later.earliest(soon), sameInstance(soon));
+        assertThat(soon.earliest(later), sameInstance(soon));
+        assertThat(Deadline.NONE.earliest(soon), sameInstance(soon));
+        assertThat(soon.earliest(Deadline.NONE), sameInstance(soon));
+    }
+
+    @Test
+    void boundStageTimesOutAndDiscardsLateResult() {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AtomicReference<String> discarded = new AtomicReference<>();
+
+        CompletionStage<String> bound = Deadline.after(Duration.ofMillis(20)).bound(slow, discarded::set);
+        Throwable cause = bound.toCompletableFuture().handle((r, ex) -> Futures.unwrap(ex)).join();
+        slow.complete("late");
+
+        assertThat(cause, instanceOf(TimeoutException.class));
+        assertThat("source left alone", slow.join(), is("late"));
+        assertThat(discarded.get(), is("late"));
+    }
+
+    @Test
+    void boundStageKeepsResultInTime() {
+        CompletionStage<String> bound = Deadline.after(Duration.ofHours(1)).bound(CompletableFuture.completedFuture("x"));
+
+        assertThat(bound.toCompletableFuture().join(), is("x"));
+    }
+}
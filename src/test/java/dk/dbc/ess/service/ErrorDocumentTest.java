@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.RecordFragment;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ErrorDocumentTest {
+
+    private final Formatting.ErrorDocument errorDocument = new Formatting.ErrorDocument();
+
+    @Test
+    void documentHasMessage() {
+        Element element = errorDocument.getDocument("Internal Server Error");
+        assertThat(element.getNamespaceURI(), is("info:ESSv0"));
+        assertThat(element.getTextContent().trim(), is("Internal Server Error"));
+        assertThat(element.getElementsByTagNameNS("info:ESSv0", "message").item(0).getAttributes().getLength(), is(0));
+    }
+
+    @Test
+    void documentsAreIndependent() {
+        Element first = errorDocument.getDocument("a");
+        Element second = errorDocument.getDocument("b");
+        assertThat(first.getOwnerDocument(), not(sameInstance(second.getOwnerDocument())));
+        assertThat(first.getTextContent().trim(), is("a"));
+    }
+
+    @Test
+    void fragmentHasEscapedMessage() {
+        String xml = errorDocument.getFragment("a < b & c").getXml();
+        assertThat(xml, containsString("<message>a &lt; b &amp; c</message>"));
+        assertThat(xml, containsString("xmlns=\"info:ESSv0\""));
+        assertThat(xml, not(containsString("<?xml")));
+    }
+
+    @Test
+    void fragmentsOfFixedMessagesAreCached() {
+        RecordFragment fragment = errorDocument.getFragment("Internal Server Error");
+        assertThat(errorDocument.getFragment("Internal Server Error"), sameInstance(fragment));
+    }
+
+    @Test
+    void fragmentsOfOtherMessagesAreNotCached() {
+        RecordFragment fragment = errorDocument.getFragment("Formatting error - content error: x");
+        assertThat(errorDocument.getFragment("Formatting error - content error: x"), not(sameInstance(fragment)));
+        assertThat(fragment.getXml(), is(errorDocument.getFragment("Formatting error - content error: x").getXml()));
+    }
+
+    @Test
+    void documentsAreMadeConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<String>> messages = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String message = "error " + i;
+                messages.add(CompletableFuture.supplyAsync(() -> errorDocument.getDocument(message).getTextContent().trim(), executor));
+            }
+            for (int i = 0; i < 200; i++) {
+                assertThat(messages.get(i).get(), is("error " + i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -18,9 +18,13 @@
  */
 package dk.dbc.ess.service;
 
+import dk.dbc.ess.service.cache.FormattedRecordCache;
+import dk.dbc.ess.service.cache.SruCache;
 import dk.dbc.ess.service.response.EssResponse;
+import dk.dbc.ess.service.sru.SruPage;
+import dk.dbc.ess.service.sru.SruRecord;
 import dk.dbc.ess.service.usage.UsageLogger;
-import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import dk.dbc.open.format.dto.FormatResponse;
 import dk.dbc.xmldiff.XmlDiff;
 import dk.dbc.xmldiff.XmlDiffTextWriter;
 import dk.dbc.xmldiff.XmlDiffWriter;
@@ -31,32 +35,52 @@ import org.mockito.stubbing.OngoingStubbing;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
+import jakarta.enterprise.concurrent.ManagedExecutorService;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.CompletionStageRxInvoker;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Marshaller;
-import jakarta.xml.bind.Unmarshaller;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static jakarta.xml.bind.JAXBContext.newInstance;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -85,10 +109,10 @@ public class EssServiceTest {
     @Test
     void testCQLRequestSuccess() throws Exception {
         ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
-        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
 
-        Response resp = essService.requestCQL("base", "", 0, 0, "format", "", "", "T");
+        Response resp = resumed(async -> essService.requestCQL("base", "", 0, 0, "format", "", "", "T", null, async));
         EssResponse entity = (EssResponse) resp.getEntity();
         boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
         assertTrue("Documents are expected to be equivalent: ", equivalent);
@@ -97,32 +121,46 @@ public class EssServiceTest {
     @Test
     void testRPNRequestSuccess() throws Exception {
         ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
-        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
 
-        Response resp = essService.requestRPN("base", "", 0, 0, "format", "", "", "T");
+        Response resp = resumed(async -> essService.requestRPN("base", "", 0, 0, "format", "", "", "T", null, async));
         EssResponse entity = (EssResponse) resp.getEntity();
         boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
         assertTrue("Documents are expected to be equivalent: ", equivalent);
     }
 
+    @Test
+    void testCQLRequestStreamed() throws Exception {
+        ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.configuration = configuration("base", "STREAM_RESPONSE=true");
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base", "", 0, 0, "format", "", "", "T", null, async));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ((StreamingOutput) resp.getEntity()).write(bos);
+        boolean equivalent = compare("/sru/expected_success.xml", bos.toString(StandardCharsets.UTF_8));
+        assertTrue("Documents are expected to be equivalent: ", equivalent);
+    }
+
     @Test
     void testRequestBadBase() throws Exception {
         ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
-        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
 
-        Response resp = essService.requestCQL("badbase", "", 0, 0, "format", null, null, null);
+        Response resp = resumed(async -> essService.requestCQL("badbase", "", 0, 0, "format", null, null, null, null, async));
         assertNotEquals("Not success", 200, resp == null ? -1 : resp.getStatus());
     }
 
     @Test
     void testRequestBadEscape() throws Exception {
         ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
-        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response_bad_escape.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(getClass().getResourceAsStream("/sru/response_bad_escape.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
 
-        Response resp = essService.requestCQL("base", "", 0, 0, "format", "", "", "T");
+        Response resp = resumed(async -> essService.requestCQL("base", "", 0, 0, "format", "", "", "T", null, async));
         assertEquals("Success", 200, resp.getStatus());
         EssResponse entity = (EssResponse) resp.getEntity();
         String actual = writeXmlObject(entity);
@@ -130,26 +168,151 @@ public class EssServiceTest {
         assertTrue("Documents are expected to be equivalent: ", equivalent);
     }
 
-    protected static ExternalSearchService mockService(String bases, String formats, String... docs) throws ExecutionException, InterruptedException {
-        EssConfiguration conf = new EssConfiguration(
-                "BASES=libris,bibsys" + (StringUtils.isBlank(bases) ? "" : ","+bases),
-                "META_PROXY_URL=whatever",
-                "OPEN_FORMAT_URL=notUsed",
-                "MAX_PAGE_SIZE=5"
-        );
+    @Test
+    void testRequestBaseIsNormalized() throws Exception {
+        ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL(" base,base", "", 0, 0, "format", "", "", "T", null, async));
+        assertEquals("Success", 200, resp.getStatus());
+        verify(essService).requestSru(eq("base"), anyString(), anyString(), anyInt(), anyInt(), any());
+    }
+
+    @Test
+    void testFederatedRequestPartialFailure() throws Exception {
+        ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        when(responseOk.readEntity(InputStream.class)).then(i -> getClass().getResourceAsStream("/sru/response.xml"));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(eq("base"), anyString(), anyString(), anyInt(), anyInt(), any());
+        doReturn(CompletableFuture.completedFuture(responseError)).when(essService).requestSru(eq("libris"), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base,libris", "", 0, 0, "format", "", "", "T", null, async));
+        assertEquals("Success", 200, resp.getStatus());
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals("Hits of the base that answered", 5, entity.hits);
+        assertEquals("Records of the base that answered", 2, entity.records.size());
+        assertEquals("Outcome of each base", 2, entity.bases.size());
+        assertEquals(Long.valueOf(5), entity.bases.get(0).hits);
+        assertEquals("libris", entity.bases.get(1).name);
+        assertNotEquals(null, entity.bases.get(1).error);
+    }
+
+    @Test
+    void testLargePageSplit() throws Exception {
+        ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.configuration = configuration("base", "LARGE_PAGE_MAX_ROWS=10");
+        when(responseOk.readEntity(InputStream.class)).then(i -> getClass().getResourceAsStream("/sru/response_many_hits.xml"));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base", "", 1, 12, "format", "", "", "T", null, async));
+        assertEquals("Success", 200, resp.getStatus());
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals("Records of both parts", 4, entity.records.size());
+        verify(essService).requestSru(eq("base"), eq("query"), eq(""), eq(1), eq(5), any());
+        verify(essService).requestSru(eq("base"), eq("query"), eq(""), eq(6), eq(5), any());
+    }
+
+    @Test
+    void testLargePageSplitBeyondHits() throws Exception {
+        ExternalSearchService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.configuration = configuration("base", "LARGE_PAGE_MAX_ROWS=10");
+        Response outOfRange = mock(Response.class);
+        doReturn(Response.Status.OK).when(outOfRange).getStatusInfo();
+        when(outOfRange.readEntity(InputStream.class)).then(i -> getClass().getResourceAsStream("/sru/response_out_of_range.xml"));
+        when(responseOk.readEntity(InputStream.class)).then(i -> getClass().getResourceAsStream("/sru/response.xml"));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), eq(1), anyInt(), any());
+        doReturn(CompletableFuture.completedFuture(outOfRange)).when(essService).requestSru(anyString(), anyString(), anyString(), eq(6), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base", "", 1, 12, "format", "", "", "T", null, async));
+        assertEquals("Success", 200, resp.getStatus());
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals("Hits", 5, entity.hits);
+        assertEquals("Records of the first part", 2, entity.records.size());
+    }
+
+    @Test
+    void testFormattedRecordsMappedByPosition() throws Exception {
+        ExternalSearchService essService = mockService("base", "format");
+        essService.configuration = configuration("base", "OPEN_FORMAT_BATCH_SIZE=2");
+        essService.formatting = openFormatResponding(essService.configuration,
+                                                     "<display format=\"format\"><n>first</n></display>",
+                                                     "<display format=\"format\"><n>second</n></display>");
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base", "", 0, 0, "format", "", "", "T", null, async));
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals("Records", 2, entity.records.size());
+        assertEquals("first", ((Element) entity.records.get(0)).getTextContent());
+        assertEquals("second", ((Element) entity.records.get(1)).getTextContent());
+    }
+
+    @Test
+    void testFewerFormattedObjectsThanRecords() throws Exception {
+        assertUnexpectedCount("<display format=\"format\"><n>first</n></display>");
+    }
+
+    @Test
+    void testMoreFormattedObjectsThanRecords() throws Exception {
+        assertUnexpectedCount("<display format=\"format\"><n>first</n></display>",
+                              "<display format=\"format\"><n>second</n></display>",
+                              "<display format=\"format\"><n>third</n></display>");
+    }
+
+    private void assertUnexpectedCount(String... formatted) throws Exception {
+        ExternalSearchService essService = mockService("base", "format");
+        essService.configuration = configuration("base", "OPEN_FORMAT_BATCH_SIZE=2");
+        essService.formatting = openFormatResponding(essService.configuration, formatted);
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any());
+
+        Response resp = resumed(async -> essService.requestCQL("base", "", 0, 0, "format", "", "", "T", null, async));
+        assertEquals("Success", 200, resp.getStatus());
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals("A record for each record found", 2, entity.records.size());
+        for (Object record : entity.records) {
+            assertTrue("Error document", ((Element) record).getTextContent().contains(Formatting.UNEXPECTED_COUNT));
+        }
+    }
+
+    @Test
+    void testMerge() throws Exception {
+        List<List<String>> lists = List.of(List.of("a1", "a2", "a3"), List.of("b1"), List.of("c1", "c2"));
+        assertEquals(List.of("a1", "b1", "c1", "a2", "c2", "a3"), ExternalSearchService.merge(lists, true));
+        assertEquals(List.of("a1", "a2", "a3", "b1", "c1", "c2"), ExternalSearchService.merge(lists, false));
+    }
+
+    protected static ExternalSearchService mockService(String bases, String formats, String... docs) throws Exception {
+        EssConfiguration conf = configuration(bases);
         ExternalSearchService essService = mock(ExternalSearchService.class);
-        essService.executorService = mockExecutorService();
         essService.formatting = makeFormatting(docs);
+        essService.sruCache = passThroughSruCache();
+        essService.formattingExecutor = sameThreadExecutor();
+        essService.responseExecutor = sameThreadManagedExecutor();
+        essService.metaProxyGuard = unguarded();
         essService.usageLogger = mock(UsageLogger.class);
         essService.metricRegistry = mock(MetricRegistry.class);
         essService.configuration = conf;
-        doCallRealMethod().when(essService).requestCQL(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyString(), anyString());
-        doCallRealMethod().when(essService).requestRPN(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyString(), anyString());
+        doCallRealMethod().when(essService).requestCQL(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyString(), anyString(), any(), any(AsyncResponse.class));
+        doCallRealMethod().when(essService).requestRPN(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyString(), anyString(), any(), any(AsyncResponse.class));
+        doCallRealMethod().when(essService).processRequest(anyString(), anyString(), anyInt(), anyInt(), anyString(), any(), any(), any(), anyBoolean(), any());
         doCallRealMethod().when(essService).serverError(anyString());
-        doCallRealMethod().when(essService).buildResponse(any(SearchRetrieveResponse.class), anyString(), anyString(), anyString(), any());
+        doCallRealMethod().when(essService).responseSru(any(Response.class), any());
+        doCallRealMethod().when(essService).buildResponse(any(SruPage.class), any(PageFormatting.class), anyString(), any());
         return essService;
     }
 
+    protected static EssConfiguration configuration(String bases, String... extra) {
+        List<String> params = new ArrayList<>(List.of(
+                "BASES=libris,bibsys" + (StringUtils.isBlank(bases) ? "" : ","+bases),
+                "META_PROXY_URL=whatever",
+                "OPEN_FORMAT_URL=notUsed",
+                "MAX_PAGE_SIZE=5"
+        ));
+        params.addAll(Arrays.asList(extra));
+        return new EssConfiguration(params.toArray(new String[0]));
+    }
+
     private boolean compare(String expected, String actual) throws SAXException, IOException, XPathExpressionException {
         XmlDiffWriter writer;
         if (System.getProperty("test") == null) {
@@ -168,26 +331,93 @@ public class EssServiceTest {
     protected static Formatting makeFormatting(String... xmls) {
         Formatting formatting = mock(Formatting.class);
         doCallRealMethod().when(formatting).formattingError(anyString());
-        OngoingStubbing<Callable<Element>> stub = when(formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString()));
+        OngoingStubbing<CompletionStage<List<Object>>> stub = when(formatting.formattingCall(anyList(), anyString(), anyString(), any()));
         for (String xml : xmls) {
-            stub = stub.then(i -> (Callable<Element>) ()-> stringToXMLObject(xml));
+            stub = stub.then(i -> CompletableFuture.completedFuture(List.<Object>of(stringToXMLObject(xml))));
+        }
+        return formatting;
+    }
+
+    /**
+     * A real formatting, with an OpenFormat that responds with an object
+     * for each of the given outputs, in the order given
+     */
+    protected static Formatting openFormatResponding(EssConfiguration configuration, String... formatted) {
+        List<Map<String, FormatResponse.Formatted>> objects = new ArrayList<>();
+        for (String xml : formatted) {
+            FormatResponse.Formatted object = mock(FormatResponse.Formatted.class);
+            when(object.getFormatted()).thenReturn(xml);
+            objects.add(Map.of("format", object));
         }
+        FormatResponse formatResponse = mock(FormatResponse.class);
+        when(formatResponse.getObjects()).thenReturn(objects);
+        Response response = mock(Response.class);
+        doReturn(Response.Status.OK).when(response).getStatusInfo();
+        doReturn(200).when(response).getStatus();
+        doReturn(formatResponse).when(response).readEntity(FormatResponse.class);
+
+        CompletionStageRxInvoker rx = mock(CompletionStageRxInvoker.class);
+        when(rx.post(any(Entity.class))).thenReturn(CompletableFuture.completedFuture(response));
+        Invocation.Builder builder = mock(Invocation.Builder.class);
+        when(builder.rx()).thenReturn(rx);
+        WebTarget target = mock(WebTarget.class);
+        when(target.request(any(MediaType.class))).thenReturn(builder);
+        Client client = mock(Client.class);
+        when(client.target(anyString())).thenReturn(target);
+
+        EssConfiguration conf = spy(configuration);
+        doReturn(client).when(conf).getOpenFormatClient();
+        Formatting formatting = new Formatting(conf);
+        formatting.formattingExecutor = sameThreadExecutor();
+        formatting.formattedRecordCache = mock(FormattedRecordCache.class);
         return formatting;
     }
 
-    protected static ExecutorService mockExecutorService() {
-        ExecutorService executor = mock(ExecutorService.class);
-        when(executor.submit(any(Callable.class)))
-                .thenAnswer(i -> {
-                    Callable<?> callable = (Callable<?>) i.getArguments()[0];
-                    Object ret = callable.call();
-                    Future future = mock(Future.class);
-                    doReturn(ret).when(future).get();
-                    return future;
-                });
+    protected static SruCache passThroughSruCache() {
+        SruCache sruCache = mock(SruCache.class);
+        when(sruCache.get(any(), any(), any(), any()))
+                .then(i -> ((SruCache.Loader) i.getArguments()[1]).load((Consumer<SruRecord>) i.getArguments()[2], (String) i.getArguments()[3]));
+        return sruCache;
+    }
+
+    protected static FormattingExecutor sameThreadExecutor() {
+        FormattingExecutor executor = mock(FormattingExecutor.class);
+        doAnswer(i -> {
+            ((Runnable) i.getArguments()[0]).run();
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        return executor;
+    }
+
+    protected static MetaProxyGuard unguarded() {
+        MetaProxyGuard guard = mock(MetaProxyGuard.class);
+        when(guard.call(anyString(), any(), any())).then(i -> ((Supplier<?>) i.getArguments()[1]).get());
+        return guard;
+    }
+
+    protected static ManagedExecutorService sameThreadManagedExecutor() {
+        ManagedExecutorService executor = mock(ManagedExecutorService.class);
+        doAnswer(i -> {
+            ((Runnable) i.getArguments()[0]).run();
+            return null;
+        }).when(executor).execute(any(Runnable.class));
         return executor;
     }
 
+    /**
+     * Run a request and wait for the response it resumes with
+     *
+     * @param request call to an asynchronous endpoint
+     * @return the response
+     */
+    protected static Response resumed(Consumer<AsyncResponse> request) throws Exception {
+        CompletableFuture<Object> resumed = new CompletableFuture<>();
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+        when(asyncResponse.resume(any(Object.class))).then(i -> resumed.complete(i.getArguments()[0]));
+        request.accept(asyncResponse);
+        return (Response) resumed.get(10, TimeUnit.SECONDS);
+    }
+
     private static Element stringToXMLObject(String xml) {
         try (InputStream is = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
             return XmlTools.newDocumentBuilder().parse(is).getDocumentElement();
@@ -196,12 +426,6 @@ public class EssServiceTest {
         }
     }
 
-    private <T> T readXMLObject(Class<? extends T> t, String resource) throws JAXBException {
-        JAXBContext jaxbContext = newInstance(t);
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-        return (T) unmarshaller.unmarshal(getClass().getResource(resource));
-    }
-
     private static <T> String writeXmlObject(T obj) throws JAXBException {
         JAXBContext jaxbContext = newInstance(obj.getClass());
         Marshaller marshaller = jaxbContext.createMarshaller();
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExportPagesTest {
+
+    private final List<Integer> requested = new ArrayList<>();
+
+    @Test
+    void walksResultSetWithinWindow() {
+        ExportPages pages = export(12, 1, 5, 100, 2, 5);
+
+        assertThat("window filled", requested, is(List.of(6)));
+        List<Object> records = drain(pages);
+        assertThat("all records", records, is(range(1, 12)));
+        assertThat("no more requests", requested, is(List.of(6, 11)));
+    }
+
+    @Test
+    void stopsAtMaxRecords() {
+        ExportPages pages = export(100, 1, 5, 12, 4, 5);
+
+        assertThat("records", drain(pages), is(range(1, 12)));
+        assertThat("requested", requested, is(List.of(6, 11)));
+    }
+
+    @Test
+    void followsNextRecordPosition() {
+        // MetaProxy returns at most 3 records a page
+        ExportPages pages = export(10, 1, 3, 100, 3, 5);
+
+        assertThat("records", drain(pages), is(range(1, 10)));
+    }
+
+    @Test
+    void shortPagesDontCountAgainstMaxRecords() {
+        // MetaProxy returns at most 3 records a page
+        ExportPages pages = export(100, 1, 3, 7, 3, 5);
+
+        assertThat("records", drain(pages), is(range(1, 7)));
+    }
+
+    @Test
+    void unexpectedPositionCancelsPagesAhead() {
+        List<CompletableFuture<ExportPages.Page>> loading = new ArrayList<>();
+        ExportPages pages = new ExportPages(first(page(100, 1, 3)), 1, 5, 100, 5, 2,
+                                            (s, r) -> {
+                                                requested.add(s);
+                                                CompletableFuture<ExportPages.Page> page = new CompletableFuture<>();
+                                                loading.add(page);
+                                                return page;
+                                            });
+
+        assertThat("first page", pages.next(), is(range(1, 3)));
+
+        assertThat("requested", requested, is(List.of(6, 4, 9)));
+        assertThat("page ahead cancelled", loading.get(0).isCancelled(), is(true));
+        assertThat("page at next position loading", loading.get(1).isCancelled(), is(false));
+    }
+
+    @Test
+    void cancelAbandonsPendingPages() {
+        List<CompletableFuture<ExportPages.Page>> loading = new ArrayList<>();
+        ExportPages pages = new ExportPages(first(page(100, 1, 5)), 1, 5, 100, 5, 2,
+                                            (s, r) -> {
+                                                requested.add(s);
+                                                CompletableFuture<ExportPages.Page> page = new CompletableFuture<>();
+                                                loading.add(page);
+                                                return page;
+                                            });
+
+        assertThat("first page", pages.next(), is(range(1, 5)));
+        pages.cancel();
+
+        assertThat("pending pages cancelled", loading.stream().allMatch(CompletableFuture::isCancelled), is(true));
+        assertThrows(CancellationException.class, pages::next);
+        assertThat("no more requests", requested, is(List.of(6, 11)));
+    }
+
+    private ExportPages export(int hits, int start, int pageLimit, int maxRecords, int window, int pageSize) {
+        int rows = Math.min(pageSize, maxRecords);
+        return new ExportPages(first(page(hits, start, Math.min(rows, pageLimit))), start, rows, maxRecords, pageSize, window,
+                               (s, r) -> {
+                                   requested.add(s);
+                                   return page(hits, s, Math.min(r, pageLimit));
+                               });
+    }
+
+    private static CompletionStage<ExportPages.Page> page(int hits, int start, int rows) {
+        int end = Math.min(hits, start + rows - 1);
+        Long next = end < hits ? Long.valueOf(end + 1) : null;
+        return CompletableFuture.completedFuture(new ExportPages.Page(hits, next, range(start, end)));
+    }
+
+    private static ExportPages.Page first(CompletionStage<ExportPages.Page> stage) {
+        return stage.toCompletableFuture().join();
+    }
+
+    private static List<Object> range(int from, int to) {
+        List<Object> list = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static List<Object> drain(ExportPages pages) {
+        List<Object> records = new ArrayList<>();
+        while (pages.hasNext()) {
+            records.addAll(pages.next());
+        }
+        return records;
+    }
+}
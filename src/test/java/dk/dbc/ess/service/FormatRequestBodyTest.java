@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class FormatRequestBodyTest {
+
+    @Test
+    void writesRecordsWrappedInInput() throws IOException {
+        List<String[]> records = Arrays.asList(new String[] {"a:1", "<r>horse</r>"},
+                                               new String[] {"a:2", "<r/>"});
+        assertThat(write(new FormatRequestBody<>(Set.of("dc"), "track", records, r -> r[0], r -> r[1])),
+                   is("{\"formats\":[\"dc\"],\"trackingId\":\"track\",\"objects\":[" +
+                      "{\"object\":\"<input><identifier>a:1</identifier><r>horse</r></input>\"}," +
+                      "{\"object\":\"<input><identifier>a:2</identifier><r/></input>\"}]}"));
+    }
+
+    @Test
+    void escapesJson() throws IOException {
+        List<String> records = List.of("<r a=\"x\">back\\slash\nline\u0001\u00e6</r>");
+        assertThat(write(new FormatRequestBody<>(Set.of("dc"), null, records, r -> "id", r -> r)),
+                   is("{\"formats\":[\"dc\"],\"trackingId\":null,\"objects\":[" +
+                      "{\"object\":\"<input><identifier>id</identifier>" +
+                      "<r a=\\\"x\\\">back\\\\slash\\nline\\u0001\u00e6</r></input>\"}]}"));
+    }
+
+    @Test
+    void escapesIdentifierAsXml() throws IOException {
+        List<String> records = List.of("<r/>");
+        assertThat(write(new FormatRequestBody<>(Set.of("dc"), "t", records, r -> "a<b>&\"c\"", r -> r)),
+                   is("{\"formats\":[\"dc\"],\"trackingId\":\"t\",\"objects\":[" +
+                      "{\"object\":\"<input><identifier>a&lt;b&gt;&amp;&quot;c&quot;</identifier><r/></input>\"}]}"));
+    }
+
+    private static String write(FormatRequestBody<?> body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        body.write(bytes);
+        return bytes.toString(UTF_8);
+    }
+}
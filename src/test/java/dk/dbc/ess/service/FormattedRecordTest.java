@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.RecordFragment;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Pass-through records must serialize like records built as documents
+ */
+class FormattedRecordTest {
+
+    @Test
+    void contentWithoutNamespace() throws Exception {
+        assertSameOutput("<display format=\"netpunkt_standard\"><parent><child>horse</child></parent><foo/></display>");
+    }
+
+    @Test
+    void contentWithDefaultNamespace() throws Exception {
+        assertSameOutput("<display xmlns=\"urn:x\" format=\"f\"><parent><child>horse</child></parent><c xmlns=\"urn:c\"/></display>");
+    }
+
+    @Test
+    void emptyRecord() throws Exception {
+        assertSameOutput("<display format=\"f\"/>");
+    }
+
+    private static void assertSameOutput(String formatted) throws Exception {
+        StringWriter dom = new StringWriter();
+        Transformer transformer = XmlTools.borrowTransformer();
+        try {
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.transform(new DOMSource(Formatting.getFormattedElement(formatted)), new StreamResult(dom));
+        } finally {
+            XmlTools.release(transformer);
+        }
+
+        assertThat(RecordFragment.fromOpenFormat(formatted).getXml(), is(dom.toString()));
+    }
+}
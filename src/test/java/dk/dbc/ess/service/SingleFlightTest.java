@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class SingleFlightTest {
+
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private final SingleFlight<String, String> flights = new SingleFlight<>(coalesced::incrementAndGet);
+
+    @Test
+    void concurrentCallersShareOperation() {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> backend = new CompletableFuture<>();
+
+        CompletionStage<String> first = flights.run("a", () -> {
+            calls.incrementAndGet();
+            return backend;
+        });
+        CompletionStage<String> second = flights.run("a", () -> {
+            calls.incrementAndGet();
+            return backend;
+        });
+        backend.complete("x");
+
+        assertThat("one call", calls.get(), is(1));
+        assertThat("coalesced", coalesced.get(), is(1));
+        assertThat("first", first.toCompletableFuture().join(), is("x"));
+        assertThat("second", second.toCompletableFuture().join(), is("x"));
+        assertThat("landed", flights.size(), is(0));
+    }
+
+    @Test
+    void completedOperationIsNotShared() {
+        AtomicInteger calls = new AtomicInteger();
+        flights.run("a", () -> CompletableFuture.completedFuture("x" + calls.incrementAndGet()));
+        String second = flights.run("a", () -> CompletableFuture.completedFuture("x" + calls.incrementAndGet()))
+                .toCompletableFuture().join();
+
+        assertThat("second", second, is("x2"));
+        assertThat("coalesced", coalesced.get(), is(0));
+    }
+
+    @Test
+    void failureIsSharedAndForgotten() {
+        CompletionStage<String> stage = flights.run("a", () -> {
+            throw new IllegalStateException("boom");
+        });
+
+        assertThat("failed", stage.toCompletableFuture().isCompletedExceptionally(), is(true));
+        assertThat("landed", flights.size(), is(0));
+    }
+
+    @Test
+    void leaderCompletesFlight() {
+        SingleFlight<String, String>.Flight leader = flights.begin("a");
+        SingleFlight<String, String>.Flight follower = flights.begin("a");
+
+        assertThat("leader", leader.isLeader(), is(true));
+        assertThat("follower", follower.isLeader(), is(false));
+        leader.complete("x");
+        assertThat("shared", follower.stage().toCompletableFuture().join(), is("x"));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.usage.UsagePartitionMaintainer;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class UsagePartitionsIT extends ContainerTestBase {
+
+    @Test
+    void partitionTakesOverRowsFromDefaultPartition() throws SQLException {
+        try (Connection connection = getEssDbConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO usage_log(database_id, client_id, agency_id, record_count, logged_at)" +
+                              " VALUES ('partition-it', 'c', 'a', 3, '2099-05-17T12:00Z')");
+            assertThat("row in default partition", count(statement, "usage_log_default"), is(1L));
+
+            connection.setAutoCommit(false);
+            UsagePartitionMaintainer.createPartition(connection, YearMonth.of(2099, 5));
+            connection.commit();
+            connection.setAutoCommit(true);
+
+            assertThat("row moved out of default partition", count(statement, "usage_log_default"), is(0L));
+            assertThat("row in new partition", count(statement, "usage_log_2099_05"), is(1L));
+            assertThat("row still in usage_log", count(statement, "usage_log"), is(1L));
+            statement.execute("DROP TABLE usage_log_2099_05");
+        }
+    }
+
+    private static long count(Statement statement, String table) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(
+                "SELECT count(*) FROM " + table + " WHERE database_id = 'partition-it'")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.usage.UsageReports;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UsageReportResourceTest {
+
+    @Test
+    void cursorRoundTrip() {
+        String cursor = UsageReportResource.cursor(new UsageReports.Row("bibsys", "", "710100", 3, 4));
+        UsageReports.Row row = UsageReportResource.parseCursor(cursor);
+        assertThat(row.databaseId, is("bibsys"));
+        assertThat(row.clientId, is(""));
+        assertThat(row.agencyId, is("710100"));
+    }
+
+    @Test
+    void cursorIsUrlSafe() {
+        String cursor = UsageReportResource.cursor(new UsageReports.Row("a/b?", "c+d", "\u00e6\u00f8\u00e5", 0, 0));
+        assertThat(cursor.matches("[A-Za-z0-9_-]+"), is(true));
+    }
+
+    @Test
+    void invalidCursor() {
+        assertThrows(IllegalArgumentException.class, () -> UsageReportResource.parseCursor("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> UsageReportResource.parseCursor("YWJj"));
+    }
+}
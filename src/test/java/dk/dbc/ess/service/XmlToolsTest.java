@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class XmlToolsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void releasedDocumentBuilderIsReused() {
+        DocumentBuilder builder = XmlTools.borrowDocumentBuilder();
+        DocumentBuilder other = XmlTools.borrowDocumentBuilder();
+        assertThat("not shared while borrowed", other, not(sameInstance(builder)));
+        XmlTools.release(other);
+        XmlTools.release(builder);
+
+        long reused = XmlTools.getDocumentBuilderReused();
+        XmlTools.release(XmlTools.borrowDocumentBuilder());
+        assertThat(XmlTools.getDocumentBuilderReused(), is(reused + 1));
+    }
+
+    @Test
+    void documentBuilderIsNamespaceAware() throws Exception {
+        assertThat(parse("<a xmlns='urn:x'/>").getNamespaceURI(), is("urn:x"));
+    }
+
+    @Test
+    void doctypeIsAccepted() throws Exception {
+        assertThat(parse("<!DOCTYPE a><a>x</a>").getTextContent(), is("x"));
+    }
+
+    @Test
+    void externalEntityIsNotResolved() throws Exception {
+        Path secret = Files.writeString(dir.resolve("secret.txt"), "secret");
+        Element element = parse("<!DOCTYPE a [<!ENTITY e SYSTEM '" + secret.toUri() + "'>]><a>&e;</a>");
+        assertThat(element.getTextContent(), not(containsString("secret")));
+    }
+
+    @Test
+    void transformerIsResetWhenReleased() {
+        Transformer transformer = XmlTools.borrowTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        XmlTools.release(transformer);
+        assertThat(transformer.getOutputProperties().getProperty(OutputKeys.OMIT_XML_DECLARATION), not(is("yes")));
+    }
+
+    private static Element parse(String xml) throws Exception {
+        DocumentBuilder builder = XmlTools.borrowDocumentBuilder();
+        try {
+            return builder.parse(new InputSource(new StringReader(xml))).getDocumentElement();
+        } finally {
+            XmlTools.release(builder);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ExpiringCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger evictions = new AtomicInteger();
+
+    @Test
+    void freshThenStaleThenGone() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, String::length, evictions::incrementAndGet, now::get);
+        cache.put("a", "x", Duration.ofSeconds(10), Duration.ofSeconds(5));
+
+        assertThat("fresh", cache.get("a").isFresh(), is(true));
+        now.set(Duration.ofSeconds(12).toNanos());
+        assertThat("stale", cache.get("a").isFresh(), is(false));
+        assertThat("stale value", cache.get("a").getValue(), is("x"));
+        now.set(Duration.ofSeconds(15).toNanos());
+        assertThat("expired", cache.get("a"), is(nullValue()));
+        assertThat("expiry counted", evictions.get(), is(1));
+        assertThat("weight", cache.weight(), is(0L));
+    }
+
+    @Test
+    void leastRecentlyUsedIsEvictedByWeight() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(6, String::length, evictions::incrementAndGet, now::get);
+        cache.put("a", "aa", Duration.ofSeconds(10), Duration.ZERO);
+        cache.put("b", "bb", Duration.ofSeconds(10), Duration.ZERO);
+        cache.put("c", "cc", Duration.ofSeconds(10), Duration.ZERO);
+        cache.get("a");
+        cache.put("d", "dd", Duration.ofSeconds(10), Duration.ZERO);
+
+        assertThat("b evicted", cache.get("b"), is(nullValue()));
+        assertThat("a kept", cache.get("a").getValue(), is("aa"));
+        assertThat("evictions", evictions.get(), is(1));
+        assertThat("weight", cache.weight(), is(6L));
+    }
+
+    @Test
+    void replacingKeepsWeight() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(6, String::length, evictions::incrementAndGet, now::get);
+        cache.put("a", "aaaa", Duration.ofSeconds(10), Duration.ZERO);
+        cache.put("a", "a", Duration.ofSeconds(10), Duration.ZERO);
+
+        assertThat("size", cache.size(), is(1));
+        assertThat("weight", cache.weight(), is(1L));
+    }
+
+    @Test
+    void tooHeavyOrNoTtlIsNotStored() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, String::length, evictions::incrementAndGet, now::get);
+        cache.put("a", "aaa", Duration.ofSeconds(10), Duration.ZERO);
+        cache.put("b", "b", Duration.ZERO, Duration.ofSeconds(10));
+
+        assertThat("size", cache.size(), is(0));
+        assertThat("evictions", evictions.get(), is(0));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RecordFragmentTest {
+
+    @Test
+    void rootIsRenamedToFormat() throws Exception {
+        RecordFragment fragment = RecordFragment.fromOpenFormat(
+                "<display format=\"netpunkt_standard\"><parent><child>horse</child></parent></display>");
+
+        assertThat(fragment.getXml(), is(
+                "<netpunkt_standard xmlns=\"http://oss.dbc.dk/ns/openformat\"><parent xmlns=\"\"><child>horse</child></parent></netpunkt_standard>"));
+    }
+
+    @Test
+    void defaultNamespaceIsKeptOnContent() throws Exception {
+        RecordFragment fragment = RecordFragment.fromOpenFormat(
+                "<display xmlns=\"urn:x\" format=\"f\"><!-- <a> --><a><![CDATA[</a>]]><b/></a>" +
+                "<c xmlns=\"urn:c\"/><?pi <d>?><d\n/></display>");
+
+        assertThat(fragment.getXml(), is(
+                "<f xmlns=\"http://oss.dbc.dk/ns/openformat\"><!-- <a> --><a xmlns=\"urn:x\"><![CDATA[</a>]]><b/></a>" +
+                "<c xmlns=\"urn:c\"/><?pi <d>?><d xmlns=\"urn:x\"\n/></f>"));
+    }
+
+    @Test
+    void prologIsDroppedAndPrefixesKept() throws Exception {
+        RecordFragment fragment = RecordFragment.fromOpenFormat(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- x -->" +
+                "<display title='a > b' format='f' xmlns:dc=\"urn:dc\"><dc:title>a &gt; b</dc:title></display>\n");
+
+        assertThat(fragment.getXml(), is(
+                "<f xmlns=\"http://oss.dbc.dk/ns/openformat\" xmlns:dc=\"urn:dc\"><dc:title>a &gt; b</dc:title></f>"));
+    }
+
+    @Test
+    void emptyRecord() throws Exception {
+        assertThat(RecordFragment.fromOpenFormat("<display format='f'/>").getXml(),
+                   is("<f xmlns=\"http://oss.dbc.dk/ns/openformat\"/>"));
+    }
+
+    @Test
+    void unusualShapesAreNotRewritten() throws Exception {
+        assertThat(RecordFragment.fromOpenFormat("<display format='f'><a/></display><!-- </x> -->"), is(nullValue()));
+    }
+
+    @Test
+    void invalidOutput() {
+        assertThrows(IllegalArgumentException.class, () -> RecordFragment.fromOpenFormat("<display><a/></display>"));
+        assertThrows(XMLStreamException.class, () -> RecordFragment.fromOpenFormat("<display format='f'><a></display>"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-payara
+ *
+ * dbc-ess-payara is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-payara is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.sru;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class SruReaderTest {
+
+    @Test
+    void recordsAreStreamedInOrder() throws Exception {
+        List<SruRecord> streamed = new ArrayList<>();
+        SruPage page = read("/sru/response.xml", streamed);
+
+        assertThat("hits", page.getNumberOfRecords(), is(5L));
+        assertThat("next", page.getNextRecordPosition(), is(3L));
+        assertThat("diagnostics", page.hasDiagnostics(), is(false));
+        assertThat("streamed", streamed, is(page.getRecords()));
+        assertThat("records", streamed.size(), is(2));
+        assertThat("usable", streamed.get(0).isUsable(), is(true));
+        assertThat("no 001", streamed.get(0).getId(), is(nullValue()));
+        assertThat("first", streamed.get(0).getXml(), containsString("HELLO"));
+        assertThat("second", streamed.get(1).getXml(), containsString("THERE"));
+        assertThat("namespace", streamed.get(0).getXml(), containsString("xmlns=\"http://www.loc.gov/MARC21/slim\""));
+    }
+
+    @Test
+    void controlField001IsExtracted() throws Exception {
+        SruPage page = read("/__files/base_bibsys_horse_response.xml", new ArrayList<>());
+
+        assertThat("hits", page.getNumberOfRecords(), is(5800L));
+        assertThat("id", page.getRecords().get(0).getId(), is("990000662304702201"));
+    }
+
+    @Test
+    void namespacesOfAncestorsAreDeclared() throws Exception {
+        SruPage page = SruReader.read(stream(
+                "<zs:searchRetrieveResponse xmlns:zs='http://docs.oasis-open.org/ns/search-ws/sruResponse' xmlns:m='urn:marc'>" +
+                "<zs:numberOfRecords>1</zs:numberOfRecords><zs:records><zs:record>" +
+                "<zs:recordXMLEscaping>xml</zs:recordXMLEscaping><zs:recordData>" +
+                "<m:record><m:controlfield tag='001'> 1&amp;2 </m:controlfield></m:record>" +
+                "</zs:recordData></zs:record></zs:records></zs:searchRetrieveResponse>"), r -> {
+        });
+        SruRecord record = page.getRecords().get(0);
+
+        assertThat("id", record.getId(), is("1&2"));
+        assertThat("xml", record.getXml(), is("<m:record xmlns:m=\"urn:marc\"><m:controlfield tag=\"001\"> 1&amp;2 </m:controlfield></m:record>"));
+    }
+
+    @Test
+    void unusableRecords() throws Exception {
+        SruPage escaping = read("/sru/response_bad_escape.xml", new ArrayList<>());
+        assertThat("string escaped", escaping.getRecords().get(0).isUsable(), is(false));
+        assertThat("problem", escaping.getRecords().get(0).getProblem(), containsString("got: string"));
+
+        SruPage duplicate = read("/__files/base_bibsys_duplicate_record_response.xml", new ArrayList<>());
+        assertThat("text and record", duplicate.getRecords().get(0).isUsable(), is(false));
+    }
+
+    @Test
+    void diagnostics() throws Exception {
+        SruPage page = read("/sru/response_diagnostics.xml", new ArrayList<>());
+
+        assertThat("diagnostics", page.hasDiagnostics(), is(true));
+        assertThat("details", page.getDiagnostics().get(0).getDetails(), is("horse ("));
+        assertThat("message", page.getDiagnostics().get(0).getMessage(), is("Query syntax error"));
+        assertThat("records", page.getRecords().isEmpty(), is(true));
+    }
+
+    private SruPage read(String resource, List<SruRecord> streamed) throws Exception {
+        try (InputStream is = getClass().getResourceAsStream(resource)) {
+            return SruReader.read(is, streamed::add);
+        }
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
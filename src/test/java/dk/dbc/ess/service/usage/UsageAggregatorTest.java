@@ -0,0 +1,69 @@
+package dk.dbc.ess.service.usage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class UsageAggregatorTest {
+    private static final long MINUTE = 60_000L;
+    private static final long T0 = 1_700_000_040_000L;
+
+    @Test
+    void countsPerKeyAndMinute() {
+        UsageAggregator aggregator = new UsageAggregator();
+        aggregator.add(usage("bibsys", "c", 5), T0 + 1_000);
+        aggregator.add(usage("bibsys", "c", 3), T0 + 59_000);
+        aggregator.add(usage("bibsys", "c", 1), T0 + MINUTE);
+        aggregator.add(usage("bibsys", null, 2), T0);
+        List<UsageAggregator.Rollup> rollups = aggregator.drain(T0 + MINUTE);
+        assertThat(rollups.size(), is(3));
+        assertRollup(rollups.get(0), "", T0, 1, 2);
+        assertRollup(rollups.get(1), "c", T0, 2, 8);
+        assertRollup(rollups.get(2), "c", T0 + MINUTE, 1, 1);
+    }
+
+    @Test
+    void drainResetsCounts() {
+        UsageAggregator aggregator = new UsageAggregator();
+        aggregator.add(usage("bibsys", "c", 5), T0);
+        aggregator.drain(T0);
+        assertThat(aggregator.drain(T0).isEmpty(), is(true));
+        aggregator.add(usage("bibsys", "c", 2), T0);
+        assertRollup(aggregator.drain(T0).get(0), "c", T0, 1, 2);
+    }
+
+    @Test
+    void pastMinutesAreRemoved() {
+        UsageAggregator aggregator = new UsageAggregator();
+        aggregator.add(usage("bibsys", "c", 5), T0);
+        aggregator.drain(T0 + MINUTE);
+        assertThat(aggregator.size(), is(1));
+        aggregator.drain(T0 + 2 * MINUTE);
+        assertThat(aggregator.size(), is(0));
+    }
+
+    @Test
+    void restoredCountsAreDrainedAgain() {
+        UsageAggregator aggregator = new UsageAggregator();
+        aggregator.add(usage("bibsys", "c", 5), T0);
+        List<UsageAggregator.Rollup> rollups = aggregator.drain(T0);
+        aggregator.add(usage("bibsys", "c", 1), T0);
+        aggregator.restore(rollups);
+        assertRollup(aggregator.drain(T0).get(0), "c", T0, 2, 6);
+    }
+
+    private static void assertRollup(UsageAggregator.Rollup rollup, String clientId, long minute, long requests, long records) {
+        assertThat(rollup.clientId, is(clientId));
+        assertThat(rollup.agencyId, is(""));
+        assertThat(rollup.minute, is(minute));
+        assertThat(rollup.requests, is(requests));
+        assertThat(rollup.records, is(records));
+    }
+
+    private static Usage usage(String databaseId, String clientId, int records) {
+        return new Usage().withDatabaseId(databaseId).withClientId(clientId).withRecordCount(records);
+    }
+}
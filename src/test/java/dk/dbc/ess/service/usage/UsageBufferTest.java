@@ -0,0 +1,58 @@
+package dk.dbc.ess.service.usage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UsageBufferTest {
+
+    @Test
+    void flushWritesInBatches() {
+        List<Integer> batches = new ArrayList<>();
+        UsageBuffer buffer = new UsageBuffer(10, 2, batch -> batches.add(batch.size()));
+        for (int i = 0; i < 5; i++) {
+            assertThat(buffer.offer(usage(i)), is(true));
+        }
+        assertThat(buffer.isBatchReady(), is(true));
+        assertThat(buffer.flush(), is(5));
+        assertThat(batches, is(List.of(2, 2, 1)));
+        assertThat(buffer.size(), is(0));
+    }
+
+    @Test
+    void fullBufferRefusesEntries() {
+        UsageBuffer buffer = new UsageBuffer(2, 2, batch -> {
+        });
+        buffer.offer(usage(1));
+        buffer.offer(usage(2));
+        assertThat(buffer.offer(usage(3)), is(false));
+    }
+
+    @Test
+    void failedBatchIsWrittenFirstNextTime() {
+        List<Usage> written = new ArrayList<>();
+        boolean[] fail = {true};
+        UsageBuffer buffer = new UsageBuffer(10, 2, batch -> {
+            if (fail[0]) {
+                throw new IllegalStateException("down");
+            }
+            written.addAll(batch);
+        });
+        buffer.offer(usage(1));
+        buffer.offer(usage(2));
+        assertThrows(IllegalStateException.class, buffer::flush);
+        buffer.offer(usage(3));
+        fail[0] = false;
+        assertThat(buffer.flush(), is(3));
+        assertThat(written, is(List.of(usage(1), usage(2), usage(3))));
+    }
+
+    private static Usage usage(int count) {
+        return new Usage().withDatabaseId("bibsys").withRecordCount(count);
+    }
+}
@@ -0,0 +1,47 @@
+package dk.dbc.ess.service.usage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class UsagePartitionsTest {
+
+    @Test
+    void namesAreMonths() {
+        assertThat(UsagePartitions.name(YearMonth.of(2024, 3)), is("usage_log_2024_03"));
+        assertThat(UsagePartitions.month("usage_log_2024_03"), is(YearMonth.of(2024, 3)));
+        assertThat(UsagePartitions.month("usage_log_default"), is(nullValue()));
+        assertThat(UsagePartitions.month("usage_rollup"), is(nullValue()));
+    }
+
+    @Test
+    void createStatementsMoveRowsFromDefaultPartition() {
+        assertThat(UsagePartitions.createStatements(YearMonth.of(2024, 12)), is(List.of(
+                "CREATE TABLE usage_log_2024_12 (LIKE usage_log INCLUDING DEFAULTS INCLUDING CONSTRAINTS)",
+                "WITH moved AS (DELETE FROM usage_log_default" +
+                " WHERE logged_at >= '2024-12-01T00:00Z' AND logged_at < '2025-01-01T00:00Z'" +
+                " RETURNING *) INSERT INTO usage_log_2024_12 SELECT * FROM moved",
+                "ALTER TABLE usage_log ATTACH PARTITION usage_log_2024_12" +
+                " FOR VALUES FROM ('2024-12-01T00:00Z') TO ('2025-01-01T00:00Z')")));
+    }
+
+    @Test
+    void upcomingIncludesCurrentMonth() {
+        assertThat(UsagePartitions.upcoming(YearMonth.of(2024, 11), 2),
+                   is(List.of(YearMonth.of(2024, 11), YearMonth.of(2024, 12), YearMonth.of(2025, 1))));
+    }
+
+    @Test
+    void expiredPartitionsArePastRetention() {
+        List<String> partitions = List.of("usage_log_2024_04", "usage_log_2024_01", "usage_log_default",
+                                          "usage_log_2024_02", "usage_log_2024_03");
+        assertThat(UsagePartitions.expired(partitions, YearMonth.of(2024, 4), 2),
+                   is(List.of("usage_log_2024_01")));
+        assertThat(UsagePartitions.expired(partitions, YearMonth.of(2024, 4), 0), is(List.of()));
+    }
+}
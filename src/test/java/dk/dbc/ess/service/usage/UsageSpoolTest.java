@@ -0,0 +1,120 @@
+package dk.dbc.ess.service.usage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UsageSpoolTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void entriesSurviveReopen() throws IOException {
+        Path file = dir.resolve("usage.spool");
+        Usage usage = new Usage().withDatabaseId("bibsys").withAgencyId("710100").withRecordCount(7).withLoggedAt(Instant.EPOCH);
+        try (UsageSpool spool = UsageSpool.open(file, 10)) {
+            assertThat(spool.append(List.of(usage, usage(1), usage(2))), is(3));
+            spool.remove(1);
+        }
+        try (UsageSpool spool = UsageSpool.open(file, 99)) {
+            assertThat(spool.capacity(), is(10));
+            List<Usage> entries = spool.peek(10);
+            assertThat(entries, is(List.of(usage(1), usage(2))));
+            assertThat(entries.get(0).getAgencyId(), is((String) null));
+            assertThat(loggedAt(entries), is(List.of(Instant.ofEpochMilli(1001), Instant.ofEpochMilli(1002))));
+        }
+    }
+
+    @Test
+    void fullSpoolRefusesEntries() throws IOException {
+        try (UsageSpool spool = UsageSpool.open(dir.resolve("usage.spool"), 2)) {
+            assertThat(spool.append(List.of(usage(1), usage(2), usage(3))), is(2));
+            spool.remove(1);
+            assertThat(spool.append(List.of(usage(3), usage(4))), is(1));
+            assertThat(spool.peek(5), is(List.of(usage(2), usage(3))));
+        }
+    }
+
+    @Test
+    void wrapsAround() throws IOException {
+        Path file = dir.resolve("usage.spool");
+        try (UsageSpool spool = UsageSpool.open(file, 3)) {
+            for (int i = 0; i < 10; i++) {
+                spool.append(List.of(usage(i)));
+                spool.remove(1);
+            }
+            spool.append(List.of(usage(10), usage(11)));
+        }
+        try (UsageSpool spool = UsageSpool.open(file, 3)) {
+            assertThat(spool.peek(5), is(List.of(usage(10), usage(11))));
+        }
+    }
+
+    @Test
+    void damagedRecordEndsSpool() throws IOException {
+        Path file = dir.resolve("usage.spool");
+        try (UsageSpool spool = UsageSpool.open(file, 10)) {
+            spool.append(List.of(usage(1), usage(2), usage(3)));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // within the database id of the second record
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), 64 + UsageSpool.RECORD_SIZE + 27);
+        }
+        try (UsageSpool spool = UsageSpool.open(file, 10)) {
+            assertThat(spool.peek(5), is(List.of(usage(1))));
+        }
+    }
+
+    @Test
+    void tooLargeEntryIsSkipped() throws IOException {
+        Usage large = new Usage().withDatabaseId("x".repeat(UsageSpool.RECORD_SIZE)).withLoggedAt(Instant.EPOCH);
+        try (UsageSpool spool = UsageSpool.open(dir.resolve("usage.spool"), 10)) {
+            assertThat(spool.append(List.of(usage(1), large, usage(2))), is(2));
+            assertThat(spool.peek(5), is(List.of(usage(1), usage(2))));
+        }
+    }
+
+    @Test
+    void damagedTimestampEndsSpool() throws IOException {
+        Path file = dir.resolve("usage.spool");
+        try (UsageSpool spool = UsageSpool.open(file, 10)) {
+            spool.append(List.of(usage(1), usage(2), usage(3)));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // within the timestamp of the second record
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f}), 64 + UsageSpool.RECORD_SIZE + 8);
+        }
+        try (UsageSpool spool = UsageSpool.open(file, 10)) {
+            assertThat(spool.peek(5), is(List.of(usage(1))));
+        }
+    }
+
+    @Test
+    void otherFileIsRefused() throws IOException {
+        Path file = dir.resolve("other");
+        Files.write(file, new byte[100]);
+        assertThrows(IOException.class, () -> UsageSpool.open(file, 10));
+    }
+
+    private static List<Instant> loggedAt(List<Usage> entries) {
+        return entries.stream().map(Usage::getLoggedAt).collect(Collectors.toList());
+    }
+
+    private static Usage usage(int count) {
+        return new Usage().withDatabaseId("bibsys").withRecordCount(count).withLoggedAt(Instant.ofEpochMilli(1000 + count));
+    }
+}